@@ -0,0 +1,482 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary form of an expanded policy, read through a memory-mapped file.
+ * <p>
+ * Consumers of {@code expanded_policy_<role>.json} have to parse every Datalog string before using a
+ * rule. The binary file holds the same rules pre-parsed, as big-endian {@code int32} words:
+ * <pre>
+ *   header      magic "PPBP", version, counts and the byte offset of every section
+ *   dictionary  string offsets followed by the UTF-8 bytes of all predicates, constants and variable names
+ *   rules       word offset of every rule, then per rule:
+ *               head predicate, head arity, head terms, atom count, (predicate, arity, terms)*
+ *   index       (predicate, first posting, posting count) sorted by predicate, then the rule numbers
+ * </pre>
+ * A term is a dictionary id, with {@link #VARIABLE_TAG} set for variables. Comparisons keep the
+ * operator as predicate, as in {@link DatalogRule}. The reader walks rules with a
+ * {@link RuleVisitor} straight from the mapped bytes, so iterating or looking up rules by body
+ * predicate creates no objects per rule; only dictionary strings are decoded, once each.
+ */
+final class BinaryPolicyFile implements AutoCloseable {
+
+    static final int MAGIC = 0x50504250; // "PPBP"
+    static final int VERSION = 1;
+    static final int VARIABLE_TAG = 0x80000000;
+    private static final int HEADER_WORDS = 10;
+    private static final Set<String> COMPARISON_OPERATORS = new HashSet<>(Arrays.asList("!=", "<>", "<=", ">=", "=", "<", ">"));
+
+    /** Receives the parts of a rule in order: the head atom, then the body atoms, each followed by its terms. */
+    interface RuleVisitor {
+        void beginRule(int rule);
+
+        void atom(boolean head, int predicate, int arity);
+
+        void term(int term);
+
+        void endRule();
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int dictionarySize;
+    private final int ruleCount;
+    private final int indexSize;
+    private final int dictionaryOffsets;
+    private final int dictionaryBytes;
+    private final int ruleOffsets;
+    private final int ruleWords;
+    private final int indexEntries;
+    private final String[] strings;
+    private Map<String, Integer> ids;
+
+    private BinaryPolicyFile(FileChannel channel, ByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_WORDS * 4 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a binary policy file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported binary policy version " + buffer.getInt(4));
+        }
+        this.dictionarySize = buffer.getInt(8);
+        this.ruleCount = buffer.getInt(12);
+        this.indexSize = buffer.getInt(16);
+        this.dictionaryOffsets = buffer.getInt(20);
+        this.dictionaryBytes = buffer.getInt(24);
+        this.ruleOffsets = buffer.getInt(28);
+        this.ruleWords = buffer.getInt(32);
+        this.indexEntries = buffer.getInt(36);
+        this.strings = new String[dictionarySize];
+    }
+
+    static BinaryPolicyFile open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new BinaryPolicyFile(channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int ruleCount() {
+        return ruleCount;
+    }
+
+    int dictionarySize() {
+        return dictionarySize;
+    }
+
+    static boolean isVariable(int term) {
+        return (term & VARIABLE_TAG) != 0;
+    }
+
+    /** Returns the predicate, constant or variable name a dictionary id or term stands for. */
+    String string(int term) {
+        int id = term & ~VARIABLE_TAG;
+        String string = strings[id];
+        if (string == null) {
+            int start = buffer.getInt(dictionaryOffsets + 4 * id);
+            int end = buffer.getInt(dictionaryOffsets + 4 * (id + 1));
+            byte[] bytes = new byte[end - start];
+            ByteBuffer view = buffer.duplicate();
+            view.position(dictionaryBytes + start);
+            view.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            strings[id] = string;
+        }
+        return string;
+    }
+
+    /** Returns the dictionary id of a string, or -1 if the file does not contain it. */
+    synchronized int dictionaryId(String string) {
+        if (ids == null) {
+            ids = new HashMap<>(dictionarySize * 2);
+            for (int id = 0; id < dictionarySize; id++) {
+                ids.put(string(id), id);
+            }
+        }
+        return ids.getOrDefault(string, -1);
+    }
+
+    void visitRule(int rule, RuleVisitor visitor) {
+        int position = ruleWords + 4 * buffer.getInt(ruleOffsets + 4 * rule);
+        visitor.beginRule(rule);
+        position = visitAtom(position, true, visitor);
+        int atoms = buffer.getInt(position);
+        position += 4;
+        for (int i = 0; i < atoms; i++) {
+            position = visitAtom(position, false, visitor);
+        }
+        visitor.endRule();
+    }
+
+    private int visitAtom(int position, boolean head, RuleVisitor visitor) {
+        int predicate = buffer.getInt(position);
+        int arity = buffer.getInt(position + 4);
+        visitor.atom(head, predicate, arity);
+        position += 8;
+        for (int i = 0; i < arity; i++) {
+            visitor.term(buffer.getInt(position));
+            position += 4;
+        }
+        return position;
+    }
+
+    void forEachRule(RuleVisitor visitor) {
+        for (int rule = 0; rule < ruleCount; rule++) {
+            visitRule(rule, visitor);
+        }
+    }
+
+    /** Visits the rules with an atom over {@code predicate} in their body, in file order. */
+    void forEachRuleWithPredicate(String predicate, RuleVisitor visitor) {
+        int entry = indexEntry(predicate);
+        if (entry < 0) {
+            return;
+        }
+        int first = buffer.getInt(indexEntries + 12 * entry + 4);
+        int count = buffer.getInt(indexEntries + 12 * entry + 8);
+        int postings = indexEntries + 12 * indexSize;
+        for (int i = 0; i < count; i++) {
+            visitRule(buffer.getInt(postings + 4 * (first + i)), visitor);
+        }
+    }
+
+    /** Number of rules with an atom over {@code predicate} in their body. */
+    int ruleCountWithPredicate(String predicate) {
+        int entry = indexEntry(predicate);
+        return entry < 0 ? 0 : buffer.getInt(indexEntries + 12 * entry + 8);
+    }
+
+    private int indexEntry(String predicate) {
+        int id = dictionaryId(predicate);
+        if (id < 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = indexSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int key = buffer.getInt(indexEntries + 12 * middle);
+            if (key < id) {
+                low = middle + 1;
+            } else if (key > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /** Prints a rule back in Datalog syntax, for inspection and conversion to JSON. */
+    String ruleText(int rule) {
+        StringBuilder text = new StringBuilder();
+        visitRule(rule, new RuleVisitor() {
+            private int remaining;
+            private int atomsWritten;
+            private String operator;
+            private boolean head;
+
+            @Override
+            public void beginRule(int rule) {
+            }
+
+            @Override
+            public void atom(boolean head, int predicate, int arity) {
+                this.head = head;
+                remaining = arity;
+                if (!head) {
+                    text.append(atomsWritten++ == 0 ? " :- " : ", ");
+                }
+                String name = string(predicate);
+                operator = isComparison(name, arity) ? name : null;
+                if (operator == null) {
+                    text.append(name).append('(');
+                    if (arity == 0) {
+                        text.append(')');
+                    }
+                }
+            }
+
+            @Override
+            public void term(int term) {
+                remaining--;
+                text.append(string(term));
+                if (operator != null) {
+                    if (remaining > 0) {
+                        text.append(' ').append(operator).append(' ');
+                    }
+                } else {
+                    text.append(remaining > 0 ? ", " : ")");
+                }
+            }
+
+            @Override
+            public void endRule() {
+                text.append(" .");
+            }
+        });
+        return text.toString();
+    }
+
+    private static boolean isComparison(String predicate, int arity) {
+        return arity == 2 && COMPARISON_OPERATORS.contains(predicate);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes {@code rules}, given as Datalog strings, in the binary format.
+     *
+     * @throws IOException also when a rule cannot be parsed as Datalog
+     */
+    static void write(Iterable<String> rules, Path file) throws IOException {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        // Rules are encoded into one growing word array, with the offset of each rule alongside
+        IntList words = new IntList();
+        IntList offsets = new IntList();
+        Map<Integer, IntList> rulesByPredicate = new TreeMap<>();
+
+        for (String text : rules) {
+            DatalogRule rule;
+            try {
+                rule = DatalogRule.parse(text);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Rule cannot be encoded: " + e.getMessage(), e);
+            }
+            int ruleNumber = offsets.size();
+            offsets.add(words.size());
+            encodeAtom(rule.headPredicate, rule.head, dictionary, words);
+            words.add(rule.body.size());
+            for (DatalogRule.Atom atom : rule.body) {
+                int predicate = encodeAtom(atom.predicate, atom.terms, dictionary, words);
+                IntList postings = rulesByPredicate.computeIfAbsent(predicate, p -> new IntList());
+                if (postings.size() == 0 || postings.get(postings.size() - 1) != ruleNumber) {
+                    postings.add(ruleNumber);
+                }
+            }
+        }
+
+        List<byte[]> strings = new ArrayList<>(dictionary.size());
+        long stringBytes = 0;
+        for (String string : dictionary.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            strings.add(bytes);
+            stringBytes += bytes.length;
+        }
+        int postingCount = 0;
+        for (IntList postings : rulesByPredicate.values()) {
+            postingCount += postings.size();
+        }
+
+        long dictionaryOffsets = 4L * HEADER_WORDS;
+        long dictionaryBytes = dictionaryOffsets + 4L * (strings.size() + 1);
+        long ruleOffsets = align(dictionaryBytes + stringBytes);
+        long ruleWords = ruleOffsets + 4L * offsets.size();
+        long indexEntries = ruleWords + 4L * words.size();
+        long end = indexEntries + 12L * rulesByPredicate.size() + 4L * postingCount;
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Policy too large for the binary format: " + end + " bytes");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(offsets.size());
+            out.writeInt(rulesByPredicate.size());
+            out.writeInt((int) dictionaryOffsets);
+            out.writeInt((int) dictionaryBytes);
+            out.writeInt((int) ruleOffsets);
+            out.writeInt((int) ruleWords);
+            out.writeInt((int) indexEntries);
+
+            int stringOffset = 0;
+            out.writeInt(stringOffset);
+            for (byte[] bytes : strings) {
+                stringOffset += bytes.length;
+                out.writeInt(stringOffset);
+            }
+            for (byte[] bytes : strings) {
+                out.write(bytes);
+            }
+            for (long i = dictionaryBytes + stringBytes; i < ruleOffsets; i++) {
+                out.writeByte(0);
+            }
+
+            for (int i = 0; i < offsets.size(); i++) {
+                out.writeInt(offsets.get(i));
+            }
+            for (int i = 0; i < words.size(); i++) {
+                out.writeInt(words.get(i));
+            }
+
+            int first = 0;
+            for (Map.Entry<Integer, IntList> entry : rulesByPredicate.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(first);
+                out.writeInt(entry.getValue().size());
+                first += entry.getValue().size();
+            }
+            for (IntList postings : rulesByPredicate.values()) {
+                for (int i = 0; i < postings.size(); i++) {
+                    out.writeInt(postings.get(i));
+                }
+            }
+        }
+    }
+
+    private static int encodeAtom(String predicate, List<String> terms, Map<String, Integer> dictionary, IntList words) {
+        int predicateId = intern(predicate, dictionary);
+        words.add(predicateId);
+        words.add(terms.size());
+        for (String term : terms) {
+            int id = intern(term, dictionary);
+            words.add(DatalogRule.isVariable(term) ? id | VARIABLE_TAG : id);
+        }
+        return predicateId;
+    }
+
+    private static int intern(String string, Map<String, Integer> dictionary) {
+        Integer id = dictionary.get(string);
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.put(string, id);
+        }
+        return id;
+    }
+
+    private static long align(long position) {
+        return (position + 3) & ~3L;
+    }
+
+    /** Growable array of primitive ints, so that encoding does not box every word. */
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /** Returns the binary file written next to an expanded policy JSON file. */
+    static Path binaryFileFor(Path jsonFile) {
+        String name = jsonFile.getFileName().toString().replaceFirst("\\.json$", "");
+        return jsonFile.resolveSibling(name + ".bin");
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: BinaryPolicyFile --convert <expanded_policy.json> [<output.bin>]");
+        System.out.println("       BinaryPolicyFile --dump <expanded_policy.bin> [--predicate <predicate>]");
+        System.out.println("       BinaryPolicyFile --stats <expanded_policy.bin>");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            printUsage();
+            return;
+        }
+        Path input = Paths.get(args[1]);
+        switch (args[0]) {
+            case "--convert": {
+                List<String> rules = new ObjectMapper().readValue(input.toFile(), new TypeReference<List<String>>() {});
+                Path output = args.length > 2 ? Paths.get(args[2]) : binaryFileFor(input);
+                write(rules, output);
+                System.out.println("✅ Wrote " + rules.size() + " rules to " + output + " (" + Files.size(output)
+                        + " bytes, JSON " + Files.size(input) + " bytes)");
+                break;
+            }
+            case "--dump":
+                try (BinaryPolicyFile policy = open(input)) {
+                    if (args.length > 3 && args[2].equals("--predicate")) {
+                        policy.forEachRuleWithPredicate(args[3], new RuleVisitor() {
+                            @Override
+                            public void beginRule(int rule) {
+                                System.out.println(policy.ruleText(rule));
+                            }
+
+                            @Override
+                            public void atom(boolean head, int predicate, int arity) {
+                            }
+
+                            @Override
+                            public void term(int term) {
+                            }
+
+                            @Override
+                            public void endRule() {
+                            }
+                        });
+                    } else {
+                        for (int rule = 0; rule < policy.ruleCount(); rule++) {
+                            System.out.println(policy.ruleText(rule));
+                        }
+                    }
+                }
+                break;
+            case "--stats":
+                try (BinaryPolicyFile policy = open(input)) {
+                    System.out.println(input + ": " + policy.ruleCount() + " rules, " + policy.dictionarySize()
+                            + " dictionary entries, " + policy.indexSize + " indexed predicates, "
+                            + Files.size(input) + " bytes");
+                }
+                break;
+            default:
+                printUsage();
+        }
+    }
+}
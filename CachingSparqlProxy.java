@@ -0,0 +1,502 @@
+package se.umea.mapgen;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caching proxy in front of the RBAC SPARQL endpoint.
+ * <p>
+ * Responses are cached under the normalised query text, the sorted set of roles from
+ * {@code x-roles} and the requested result format. The user is not part of the key, so two users
+ * with the same roles share entries while different role sets never do; {@code --key-by-user} adds
+ * the user for mappings that also depend on it. Entries expire after a TTL, the least recently used
+ * ones are evicted once the cache exceeds its size in bytes, and everything is dropped when one of
+ * the watched mapping files or, with {@code --policies}, one of the policy files in use changes, or
+ * when {@code /invalidate} is called. Concurrent misses for the same key share one upstream request.
+ * Hit rates are served at {@code /metrics}.
+ * <p>
+ * With {@code --policies}, cache misses first go through a {@link PolicyPreCheck}: a query that the
+ * denial policies of the request's role always censor is answered with an empty result without
+ * contacting the endpoint, or, where an empty answer cannot be produced here (aggregates, graph
+ * results, other formats than SPARQL JSON and XML), forwarded with an {@code X-Policy-Precheck}
+ * header naming the policy.
+ */
+class CachingSparqlProxy implements AutoCloseable {
+
+    private static final long FILE_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class CachedResponse {
+        final byte[] body;
+        final String contentType;
+        final long expiresAt;
+
+        CachedResponse(byte[] body, String contentType, long expiresAt) {
+            this.body = body;
+            this.contentType = contentType;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final HttpClient httpClient;
+    private final URI upstream;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final boolean keyByUser;
+    private final List<Path> mappingFiles;
+    private final PolicyPreCheck preCheck;
+
+    private final LinkedHashMap<String, CachedResponse> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    // Bumped on invalidation, so that responses fetched before it are not stored afterwards
+    private long generation;
+    private final ConcurrentHashMap<String, CompletableFuture<CachedResponse>> inFlight = new ConcurrentHashMap<>();
+
+    private volatile String mappingFingerprint;
+    private volatile long lastFileCheck;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong upstreamErrors = new AtomicLong();
+
+    CachingSparqlProxy(int port, String upstreamUrl, long maxBytes, Duration ttl, boolean keyByUser,
+                       List<Path> mappingFiles, PolicyPreCheck preCheck) throws IOException {
+        this.upstream = URI.create(upstreamUrl);
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl.toNanos();
+        this.keyByUser = keyByUser;
+        this.mappingFiles = mappingFiles;
+        this.preCheck = preCheck;
+        this.mappingFingerprint = mappingFingerprint();
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).executor(executor).build();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/sparql", this::handleQuery);
+        server.createContext("/metrics", this::handleMetrics);
+        server.createContext("/invalidate", this::handleInvalidate);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/sparql";
+    }
+
+    private void handleQuery(HttpExchange exchange) throws IOException {
+        try {
+            String query = readQuery(exchange);
+            if (query == null) {
+                send(exchange, 400, "text/plain", "Missing query parameter".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            checkWatchedFiles();
+
+            String user = Objects.toString(exchange.getRequestHeaders().getFirst("x-user"), "");
+            String roles = Objects.toString(exchange.getRequestHeaders().getFirst("x-roles"), "");
+            String accept = Objects.toString(exchange.getRequestHeaders().getFirst("Accept"), "");
+            String key = cacheKey(query, roles, accept, keyByUser ? user : null);
+
+            CachedResponse response = lookup(key);
+            if (response != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                response = preCheck == null ? null : censoredResponse(exchange, key, query, roles, accept);
+                if (response == null) {
+                    response = fetch(key, query, user, roles, accept);
+                }
+            }
+            send(exchange, 200, response.contentType, response.body);
+        } catch (UpstreamException e) {
+            upstreamErrors.incrementAndGet();
+            send(exchange, e.status, "text/plain", e.body);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "text/plain", "Interrupted".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            upstreamErrors.incrementAndGet();
+            send(exchange, 502, "text/plain", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Thrown for upstream error responses, which are passed on to the client but never cached. */
+    private static final class UpstreamException extends IOException {
+        final int status;
+        final byte[] body;
+
+        UpstreamException(int status, byte[] body) {
+            super("HTTP " + status);
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Sends the query upstream, or waits for an identical request that is already on its way.
+     */
+    private CachedResponse fetch(String key, String query, String user, String roles, String accept)
+            throws IOException, InterruptedException {
+        CompletableFuture<CachedResponse> future = new CompletableFuture<>();
+        CompletableFuture<CachedResponse> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+        long fetchGeneration = currentGeneration();
+        try {
+            HttpRequest.Builder request = HttpRequest.newBuilder(upstream)
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("query=" + URLEncoder.encode(query, StandardCharsets.UTF_8)));
+            if (!user.isEmpty()) {
+                request.header("x-user", user);
+            }
+            if (!roles.isEmpty()) {
+                request.header("x-roles", roles);
+            }
+            if (!accept.isEmpty()) {
+                request.header("Accept", accept);
+            }
+            HttpResponse<byte[]> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+                throw new UpstreamException(response.statusCode(), response.body());
+            }
+            CachedResponse cached = new CachedResponse(response.body(),
+                    response.headers().firstValue("Content-Type").orElse("application/sparql-results+json"),
+                    System.nanoTime() + ttlNanos);
+            store(key, cached, fetchGeneration);
+            future.complete(cached);
+            return cached;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Returns the empty answer of a query that the role's policies always censor, or {@code null} if
+     * the query has to be sent upstream. Censored queries that are still sent are annotated.
+     */
+    private CachedResponse censoredResponse(HttpExchange exchange, String key, String query, String roles, String accept) {
+        PolicyPreCheck.Verdict verdict = preCheck.check(query, roles);
+        if (verdict == null || !verdict.guaranteedEmpty()) {
+            return null;
+        }
+        String body = emptyResult(verdict, accept);
+        if (!verdict.canShortCircuit() || body == null) {
+            exchange.getResponseHeaders().set("X-Policy-Precheck", "empty; role=" + verdict.role);
+            return null;
+        }
+        preCheck.recordShortCircuit();
+        exchange.getResponseHeaders().set("X-Policy-Precheck", "short-circuited; role=" + verdict.role);
+        CachedResponse response = new CachedResponse(body.getBytes(StandardCharsets.UTF_8),
+                accept.contains("xml") ? "application/sparql-results+xml" : "application/sparql-results+json",
+                System.nanoTime() + ttlNanos);
+        store(key, response, currentGeneration());
+        return response;
+    }
+
+    private static String emptyResult(PolicyPreCheck.Verdict verdict, String accept) {
+        if (accept.contains("xml")) {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">\n<head>");
+            if (!verdict.ask) {
+                for (String variable : verdict.variables) {
+                    xml.append("<variable name=\"").append(variable).append("\"/>");
+                }
+            }
+            xml.append("</head>\n").append(verdict.ask ? "<boolean>false</boolean>" : "<results></results>");
+            return xml.append("\n</sparql>\n").toString();
+        }
+        if (!accept.isEmpty() && !accept.contains("json") && !accept.contains("*/*")) {
+            return null;
+        }
+        if (verdict.ask) {
+            return "{\"head\":{},\"boolean\":false}";
+        }
+        List<String> variables = new ArrayList<>();
+        for (String variable : verdict.variables) {
+            variables.add("\"" + variable + "\"");
+        }
+        return "{\"head\":{\"vars\":[" + String.join(",", variables) + "]},\"results\":{\"bindings\":[]}}";
+    }
+
+    private synchronized CachedResponse lookup(String key) {
+        CachedResponse response = cache.get(key);
+        if (response != null && response.expiresAt - System.nanoTime() < 0) {
+            cache.remove(key);
+            cachedBytes -= response.body.length;
+            expirations.incrementAndGet();
+            return null;
+        }
+        return response;
+    }
+
+    private synchronized long currentGeneration() {
+        return generation;
+    }
+
+    private synchronized void store(String key, CachedResponse response, long fetchGeneration) {
+        if (fetchGeneration != generation || response.body.length > maxBytes) {
+            return;
+        }
+        CachedResponse previous = cache.put(key, response);
+        if (previous != null) {
+            cachedBytes -= previous.body.length;
+        }
+        cachedBytes += response.body.length;
+        Iterator<CachedResponse> leastRecentlyUsed = cache.values().iterator();
+        while (cachedBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            cachedBytes -= leastRecentlyUsed.next().body.length;
+            leastRecentlyUsed.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    synchronized void invalidate() {
+        cache.clear();
+        cachedBytes = 0;
+        generation++;
+        invalidations.incrementAndGet();
+        if (preCheck != null) {
+            preCheck.reload();
+        }
+    }
+
+    /**
+     * Drops the cache when a mapping file or a loaded policy file was modified, checking the files at
+     * most once a second. Cached short-circuited answers depend on the policies, so a policy change
+     * invalidates them as well as the pre-check's indexes.
+     */
+    private void checkWatchedFiles() {
+        long now = System.nanoTime();
+        if ((mappingFiles.isEmpty() && preCheck == null) || now - lastFileCheck < FILE_CHECK_INTERVAL_NANOS) {
+            return;
+        }
+        lastFileCheck = now;
+        String fingerprint = mappingFingerprint();
+        if (!fingerprint.equals(mappingFingerprint)) {
+            mappingFingerprint = fingerprint;
+            invalidate();
+            System.out.println("Mapping files changed, cache invalidated");
+        } else if (preCheck != null && preCheck.policiesChanged()) {
+            invalidate();
+            System.out.println("Policy files changed, cache invalidated");
+        }
+    }
+
+    private String mappingFingerprint() {
+        StringBuilder fingerprint = new StringBuilder();
+        for (Path file : mappingFiles) {
+            try {
+                fingerprint.append(file).append(':').append(Files.getLastModifiedTime(file).toMillis())
+                        .append(':').append(Files.size(file)).append('\n');
+            } catch (IOException e) {
+                fingerprint.append(file).append(":missing\n");
+            }
+        }
+        return fingerprint.toString();
+    }
+
+    static String cacheKey(String query, String roles, String accept, String user) {
+        SortedSet<String> roleSet = new TreeSet<>();
+        for (String role : roles.split(",")) {
+            if (!role.trim().isEmpty()) {
+                roleSet.add(role.trim());
+            }
+        }
+        String key = String.join(",", roleSet) + '\n' + accept.trim() + '\n' + normaliseQuery(query);
+        return user == null ? key : user + '\n' + key;
+    }
+
+    /**
+     * Removes comments and collapses whitespace outside string literals and IRIs, so that queries
+     * that only differ in layout share a cache entry.
+     */
+    static String normaliseQuery(String query) {
+        StringBuilder normalised = new StringBuilder(query.length());
+        boolean pendingSpace = false;
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = normalised.length() > 0;
+                i++;
+                continue;
+            }
+            if (c == '#') {
+                while (i < query.length() && query.charAt(i) != '\n') {
+                    i++;
+                }
+                pendingSpace = normalised.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalised.append(' ');
+                pendingSpace = false;
+            }
+            int end = i + 1;
+            if (c == '"' || c == '\'') {
+                boolean longString = query.startsWith(String.valueOf(c).repeat(3), i);
+                end = longString ? i + 3 : i + 1;
+                while (end < query.length()) {
+                    if (query.charAt(end) == '\\') {
+                        end += 2;
+                    } else if (longString ? query.startsWith(String.valueOf(c).repeat(3), end) : query.charAt(end) == c) {
+                        end += longString ? 3 : 1;
+                        break;
+                    } else {
+                        end++;
+                    }
+                }
+            } else if (c == '<') {
+                // An IRI, unless it is a comparison operator
+                int close = end;
+                while (close < query.length() && query.charAt(close) != '>' && !Character.isWhitespace(query.charAt(close))) {
+                    close++;
+                }
+                if (close < query.length() && query.charAt(close) == '>') {
+                    end = close + 1;
+                }
+            }
+            end = Math.min(end, query.length());
+            normalised.append(query, i, end);
+            i = end;
+        }
+        return normalised.toString();
+    }
+
+    private static String readQuery(HttpExchange exchange) throws IOException {
+        String contentType = Objects.toString(exchange.getRequestHeaders().getFirst("Content-Type"), "");
+        String body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        if (contentType.startsWith("application/sparql-query")) {
+            return body;
+        }
+        String form = exchange.getRequestMethod().equals("GET") ? exchange.getRequestURI().getRawQuery() : body;
+        if (form == null) {
+            return null;
+        }
+        for (String parameter : form.split("&")) {
+            if (parameter.startsWith("query=")) {
+                return URLDecoder.decode(parameter.substring("query=".length()), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().close();
+        long hitCount = hits.get();
+        long requests = hitCount + misses.get();
+        int entries;
+        long bytes;
+        synchronized (this) {
+            entries = cache.size();
+            bytes = cachedBytes;
+        }
+        String metrics = "hits " + hitCount + "\n"
+                + "misses " + misses.get() + "\n"
+                + String.format(Locale.ROOT, "hit_rate %.4f%n", requests == 0 ? 0.0 : (double) hitCount / requests)
+                + "entries " + entries + "\n"
+                + "bytes " + bytes + "\n"
+                + "max_bytes " + maxBytes + "\n"
+                + "evictions " + evictions.get() + "\n"
+                + "expirations " + expirations.get() + "\n"
+                + "invalidations " + invalidations.get() + "\n"
+                + "upstream_errors " + upstreamErrors.get() + "\n"
+                + (preCheck == null ? "" : preCheck.metrics());
+        send(exchange, 200, "text/plain; charset=utf-8", metrics.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleInvalidate(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().close();
+        if (!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 405, "text/plain", "Use POST".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        invalidate();
+        send(exchange, 200, "text/plain", "Cache invalidated\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: CachingSparqlProxy [--port <n>] [--upstream <url>] [--max-mb <n>] [--ttl <seconds>]");
+        System.out.println("         [--mappings <file.obda,...>] [--key-by-user] [--policies <directory>]");
+        System.out.println("Point QueryExecutor at the proxy with -Dsparql.endpoint=http://localhost:<port>/sparql");
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (name.equals("--key-by-user")) {
+                options.put(name, "true");
+            } else if (name.startsWith("--") && i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+
+        List<Path> mappingFiles = new ArrayList<>();
+        for (String file : options.getOrDefault("--mappings", "").split(",")) {
+            if (!file.trim().isEmpty()) {
+                mappingFiles.add(Paths.get(file.trim()));
+            }
+        }
+        CachingSparqlProxy proxy = new CachingSparqlProxy(
+                Integer.parseInt(options.getOrDefault("--port", "8081")),
+                options.getOrDefault("--upstream", "http://localhost:8080/sparql"),
+                Long.parseLong(options.getOrDefault("--max-mb", "256")) * 1024 * 1024,
+                Duration.ofSeconds(Long.parseLong(options.getOrDefault("--ttl", "300"))),
+                options.containsKey("--key-by-user"),
+                mappingFiles,
+                options.containsKey("--policies") ? new PolicyPreCheck(Paths.get(options.get("--policies"))) : null);
+        System.out.println("Caching SPARQL proxy listening at " + proxy.url() + ", forwarding to "
+                + options.getOrDefault("--upstream", "http://localhost:8080/sparql"));
+    }
+}
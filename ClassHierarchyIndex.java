@@ -0,0 +1,100 @@
+package se.umea.mapgen;
+
+import org.semanticweb.owlapi.model.*;
+import org.semanticweb.owlapi.model.parameters.Imports;
+
+import java.util.*;
+
+/**
+ * Precomputed named-class hierarchy of an ontology.
+ * <p>
+ * Built in one pass over the {@code SubClassOf} and {@code EquivalentClasses} axioms of the ontology
+ * and its imports, after which the transitive sub-classes of every class are computed once. Lookups
+ * are then plain map reads, which replaces repeated {@code StructuralReasoner.getSubClasses} calls
+ * when the closure of many seeds or mapping classes is needed. The told hierarchy is read the way the
+ * structural reasoner reads it: a class is a sub-class of every named conjunct of its super-classes,
+ * as in {@code A SubClassOf B and (r some C)}, and of the named conjuncts of the expressions it is
+ * equivalent to. As with {@code getSubClasses(cls, false)}, the classes equivalent to {@code cls}
+ * itself are not among its sub-classes, and {@code owl:Nothing} is left out.
+ */
+class ClassHierarchyIndex {
+
+    private final Map<OWLClass, Set<OWLClass>> descendants;
+
+    ClassHierarchyIndex(OWLOntology ontology) {
+        Map<OWLClass, Set<OWLClass>> children = new HashMap<>();
+        for (OWLSubClassOfAxiom axiom : ontology.getAxioms(AxiomType.SUBCLASS_OF, Imports.INCLUDED)) {
+            if (axiom.getSubClass().isAnonymous()) {
+                continue;
+            }
+            for (OWLClassExpression conjunct : axiom.getSuperClass().asConjunctSet()) {
+                if (!conjunct.isAnonymous()) {
+                    children.computeIfAbsent(conjunct.asOWLClass(), c -> new HashSet<>())
+                            .add(axiom.getSubClass().asOWLClass());
+                }
+            }
+        }
+        for (OWLEquivalentClassesAxiom axiom : ontology.getAxioms(AxiomType.EQUIVALENT_CLASSES, Imports.INCLUDED)) {
+            Set<OWLClass> named = axiom.getNamedClasses();
+            for (OWLClassExpression expression : axiom.getClassExpressions()) {
+                for (OWLClassExpression conjunct : expression.asConjunctSet()) {
+                    if (conjunct.isAnonymous()) {
+                        continue;
+                    }
+                    for (OWLClass cls : named) {
+                        if (!cls.equals(expression)) {
+                            children.computeIfAbsent(conjunct.asOWLClass(), c -> new HashSet<>()).add(cls);
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<OWLClass, Set<OWLClass>> closure = new HashMap<>();
+        for (OWLClass cls : children.keySet()) {
+            Set<OWLClass> reached = new HashSet<>();
+            Deque<OWLClass> pending = new ArrayDeque<>(children.get(cls));
+            while (!pending.isEmpty()) {
+                OWLClass next = pending.pop();
+                if (reached.add(next)) {
+                    pending.addAll(children.getOrDefault(next, Collections.emptySet()));
+                }
+            }
+            closure.put(cls, reached);
+        }
+
+        // A class that reaches cls again is equivalent to it rather than below it
+        Map<OWLClass, Set<OWLClass>> subClasses = new HashMap<>();
+        for (Map.Entry<OWLClass, Set<OWLClass>> entry : closure.entrySet()) {
+            OWLClass cls = entry.getKey();
+            Set<OWLClass> below = new HashSet<>();
+            for (OWLClass sub : entry.getValue()) {
+                if (!sub.isOWLNothing() && !closure.getOrDefault(sub, Collections.emptySet()).contains(cls)) {
+                    below.add(sub);
+                }
+            }
+            subClasses.put(cls, Collections.unmodifiableSet(below));
+        }
+        this.descendants = subClasses;
+    }
+
+    /**
+     * All direct and indirect named sub-classes of {@code cls}, not including {@code cls} itself.
+     */
+    Set<OWLClass> subClasses(OWLClass cls) {
+        return descendants.getOrDefault(cls, Collections.emptySet());
+    }
+
+    /**
+     * Adds the sub-classes of every class in {@code entities} to it.
+     */
+    void addSubClasses(Set<OWLEntity> entities) {
+        Set<OWLClass> subclasses = new HashSet<>();
+        for (OWLEntity entity : entities) {
+            if (entity.isOWLClass()) {
+                subclasses.addAll(subClasses(entity.asOWLClass()));
+            }
+        }
+        entities.addAll(subclasses);
+    }
+}
@@ -0,0 +1,236 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jdk.jfr.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Phase timings and counts of one policy expansion or mapping combination run.
+ * <p>
+ * Every measurement is also emitted as a JFR event in the {@code PPOBDA} category, so a recompile
+ * can be profiled by starting the JVM with {@code -XX:StartFlightRecording} and opening the
+ * recording in JDK Mission Control, without attaching a profiler. The events cost nothing while no
+ * recording is running. At the end of a run the aggregated timings, counters and per-rule details
+ * are written as a JSON summary with {@link #write(Path)}.
+ */
+final class CompilationMetrics {
+
+    @Name("se.umea.mapgen.Phase")
+    @Label("Compilation Phase")
+    @Category({"PPOBDA", "Compilation"})
+    @Description("One phase of a policy expansion or mapping combination run")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Detail")
+        String detail;
+    }
+
+    @Name("se.umea.mapgen.RuleReformulation")
+    @Label("Policy Rule Reformulation")
+    @Category({"PPOBDA", "Compilation"})
+    @Description("Reformulation of one policy rule with Ontop and its conversion back to conjunctive queries")
+    static final class RuleReformulationEvent extends Event {
+        @Label("Rule")
+        String rule;
+        @Label("From Cache")
+        boolean cached;
+        @Label("Reformulate Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long reformulateNanos;
+        @Label("Conversion Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long conversionNanos;
+        @Label("IQ Tree Nodes")
+        int iqNodes;
+        @Label("Union Width")
+        int unionWidth;
+        @Label("Expanded Rules")
+        int expandedRules;
+    }
+
+    @Name("se.umea.mapgen.MappingFile")
+    @Label("Mapping File Rewrite")
+    @Category({"PPOBDA", "Compilation"})
+    @Description("Parsing and role rewriting of one OBDA file by MappingCombinerRBAC")
+    static final class MappingFileEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Role")
+        String role;
+        @Label("Mappings")
+        int mappings;
+        @Label("Wrapped Sources")
+        int wrappedSources;
+        @Label("Parse Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long parseNanos;
+        @Label("Rewrite Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long rewriteNanos;
+    }
+
+    private static final class PhaseStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        long maxNanos;
+
+        synchronized void add(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+    }
+
+    /** Times a phase until closed. */
+    final class Timer implements AutoCloseable {
+        private final PhaseEvent event = new PhaseEvent();
+        private final long start = System.nanoTime();
+
+        private Timer(String phase, String detail) {
+            event.phase = phase;
+            event.detail = detail;
+            event.begin();
+        }
+
+        @Override
+        public void close() {
+            event.commit();
+            recordPhase(event.phase, System.nanoTime() - start);
+        }
+    }
+
+    private final String tool;
+    private final Instant started = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, PhaseStats> phases = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final List<Map<String, Object>> details = Collections.synchronizedList(new ArrayList<>());
+
+    CompilationMetrics(String tool) {
+        this.tool = tool;
+    }
+
+    Timer time(String phase, String detail) {
+        return new Timer(phase, detail);
+    }
+
+    void recordPhase(String phase, long nanos) {
+        phases.computeIfAbsent(phase, p -> new PhaseStats()).add(nanos);
+    }
+
+    void count(String counter, long delta) {
+        counters.computeIfAbsent(counter, c -> new LongAdder()).add(delta);
+    }
+
+    /** Records the expansion of one rule. Cache hits have no reformulation time or IQ figures. */
+    void recordRule(String rule, boolean cached, long reformulateNanos, long conversionNanos, int iqNodes,
+                    int unionWidth, int expandedRules) {
+        RuleReformulationEvent event = new RuleReformulationEvent();
+        if (event.shouldCommit()) {
+            event.rule = rule;
+            event.cached = cached;
+            event.reformulateNanos = reformulateNanos;
+            event.conversionNanos = conversionNanos;
+            event.iqNodes = iqNodes;
+            event.unionWidth = unionWidth;
+            event.expandedRules = expandedRules;
+            event.commit();
+        }
+        count("rules", 1);
+        count("expandedRules", expandedRules);
+        if (cached) {
+            count("cacheHits", 1);
+        } else {
+            recordPhase("reformulate", reformulateNanos);
+            recordPhase("generateConjunctiveQueries", conversionNanos);
+            count("iqNodes", iqNodes);
+        }
+
+        Map<String, Object> detail = new LinkedHashMap<>();
+        detail.put("rule", rule);
+        detail.put("cached", cached);
+        detail.put("reformulateMillis", millis(reformulateNanos));
+        detail.put("conversionMillis", millis(conversionNanos));
+        detail.put("iqNodes", iqNodes);
+        detail.put("unionWidth", unionWidth);
+        detail.put("expandedRules", expandedRules);
+        details.add(detail);
+    }
+
+    void recordMappingFile(String file, String role, int mappings, int wrappedSources, long parseNanos, long rewriteNanos) {
+        MappingFileEvent event = new MappingFileEvent();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.role = role;
+            event.mappings = mappings;
+            event.wrappedSources = wrappedSources;
+            event.parseNanos = parseNanos;
+            event.rewriteNanos = rewriteNanos;
+            event.commit();
+        }
+        count("mappings", mappings);
+        count("wrappedSources", wrappedSources);
+        recordPhase("parse", parseNanos);
+        // Collapsed runs rewrite once all files are read, and time that as a phase of its own
+        if (rewriteNanos > 0) {
+            recordPhase("rewrite", rewriteNanos);
+        }
+
+        Map<String, Object> detail = new LinkedHashMap<>();
+        detail.put("file", file);
+        detail.put("role", role);
+        detail.put("mappings", mappings);
+        detail.put("wrappedSources", wrappedSources);
+        detail.put("parseMillis", millis(parseNanos));
+        detail.put("rewriteMillis", millis(rewriteNanos));
+        details.add(detail);
+    }
+
+    void write(Path file) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+        objectMapper.writeValue(file.toFile(), summary());
+    }
+
+    /** The aggregated timings, counters and details recorded so far, as written by {@link #write(Path)}. */
+    Map<String, Object> summary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("tool", tool);
+        summary.put("started", started.toString());
+        summary.put("totalMillis", millis(System.nanoTime() - startNanos));
+
+        Map<String, Object> phaseSummary = new TreeMap<>();
+        for (Map.Entry<String, PhaseStats> entry : phases.entrySet()) {
+            PhaseStats stats = entry.getValue();
+            Map<String, Object> phase = new LinkedHashMap<>();
+            synchronized (stats) {
+                phase.put("count", stats.count.sum());
+                phase.put("totalMillis", millis(stats.totalNanos.sum()));
+                phase.put("maxMillis", millis(stats.maxNanos));
+            }
+            phaseSummary.put(entry.getKey(), phase);
+        }
+        summary.put("phases", phaseSummary);
+
+        Map<String, Long> counterSummary = new TreeMap<>();
+        counters.forEach((name, value) -> counterSummary.put(name, value.sum()));
+        summary.put("counters", counterSummary);
+        synchronized (details) {
+            summary.put("details", new ArrayList<>(details));
+        }
+        return summary;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,268 @@
+package se.umea.mapgen;
+
+import java.util.*;
+
+/**
+ * Lightweight, immutable view of a Datalog conjunctive query such as
+ * {@code Q() :- Patient.gender(x), Patient.address(x, y) .}, as printed by
+ * {@code OntologyConjunctiveQuery.toString()} and stored in policy files.
+ * <p>
+ * Terms are kept as strings: bare identifiers are variables, everything else (quoted literals,
+ * numbers, IRIs) is a constant. Comparisons such as {@code x != y} are kept as atoms whose predicate
+ * is the operator, so they take part in containment checks syntactically.
+ */
+final class DatalogRule {
+
+    private static final String[] COMPARISON_OPERATORS = {"!=", "<>", "<=", ">=", "=", "<", ">"};
+
+    final String text;
+    final String headPredicate;
+    final List<String> head;
+    final List<Atom> body;
+
+    private String canonicalForm;
+
+    private DatalogRule(String text, String headPredicate, List<String> head, List<Atom> body) {
+        this.text = text;
+        this.headPredicate = headPredicate;
+        this.head = head;
+        this.body = body;
+    }
+
+    static final class Atom {
+        final String predicate;
+        final List<String> terms;
+
+        Atom(String predicate, List<String> terms) {
+            this.predicate = predicate;
+            this.terms = terms;
+        }
+
+        /** Predicate name and arity, e.g. {@code Patient.address/2}. */
+        String signature() {
+            return predicate + "/" + terms.size();
+        }
+
+        @Override
+        public String toString() {
+            return predicate + "(" + String.join(", ", terms) + ")";
+        }
+    }
+
+    static DatalogRule parse(String text) {
+        String rule = text.trim();
+        if (rule.endsWith(".")) {
+            rule = rule.substring(0, rule.length() - 1).trim();
+        }
+        int arrow = rule.indexOf(":-");
+        if (arrow == -1) {
+            throw new IllegalArgumentException("Not a Datalog rule: " + text);
+        }
+
+        Atom headAtom = parseAtom(rule.substring(0, arrow).trim(), text);
+        List<Atom> body = new ArrayList<>();
+        for (String atom : splitTopLevel(rule.substring(arrow + 2), ',')) {
+            if (!atom.trim().isEmpty()) {
+                body.add(parseAtom(atom.trim(), text));
+            }
+        }
+        if (body.isEmpty()) {
+            throw new IllegalArgumentException("Empty rule body: " + text);
+        }
+        return new DatalogRule(text, headAtom.predicate, headAtom.terms, Collections.unmodifiableList(body));
+    }
+
+    private static Atom parseAtom(String atom, String rule) {
+        int open = atom.indexOf('(');
+        if (open > 0 && atom.endsWith(")") && !startsWithQuote(atom)) {
+            List<String> terms = new ArrayList<>();
+            String args = atom.substring(open + 1, atom.length() - 1);
+            if (!args.trim().isEmpty()) {
+                for (String term : splitTopLevel(args, ',')) {
+                    terms.add(term.trim());
+                }
+            }
+            return new Atom(atom.substring(0, open).trim(), Collections.unmodifiableList(terms));
+        }
+        for (String operator : COMPARISON_OPERATORS) {
+            int index = indexOfTopLevel(atom, operator);
+            if (index > 0) {
+                return new Atom(operator, Arrays.asList(atom.substring(0, index).trim(),
+                        atom.substring(index + operator.length()).trim()));
+            }
+        }
+        throw new IllegalArgumentException("Cannot parse atom '" + atom + "' in rule: " + rule);
+    }
+
+    private static boolean startsWithQuote(String s) {
+        return s.startsWith("'") || s.startsWith("\"");
+    }
+
+    private static List<String> splitTopLevel(String s, char separator) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        boolean inIri = false;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (inIri) {
+                if (c == '>') inIri = false;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '<' && i + 1 < s.length() && Character.isLetter(s.charAt(i + 1))) {
+                inIri = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == separator && depth == 0) {
+                parts.add(s.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(s.substring(start));
+        return parts;
+    }
+
+    private static int indexOfTopLevel(String s, String operator) {
+        char quote = 0;
+        for (int i = 0; i + operator.length() <= s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (s.startsWith(operator, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isVariable(String term) {
+        if (term.isEmpty() || !(Character.isLetter(term.charAt(0)) || term.charAt(0) == '_')) {
+            return false;
+        }
+        for (int i = 1; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Distinct predicate signatures of the body. */
+    Set<String> signatures() {
+        Set<String> signatures = new LinkedHashSet<>();
+        for (Atom atom : body) {
+            signatures.add(atom.signature());
+        }
+        return signatures;
+    }
+
+    /**
+     * Text of the rule with atoms sorted and variables renamed in order of first occurrence.
+     * Rules with equal canonical forms are equal up to variable renaming and atom order; the converse
+     * does not always hold, so callers needing completeness should fall back to {@link #isContainedIn}.
+     */
+    String canonicalForm() {
+        if (canonicalForm == null) {
+            // Sort on a variable-blind key first, so that renaming does not influence atom order
+            List<Atom> atoms = new ArrayList<>(body);
+            atoms.sort(Comparator.comparing(DatalogRule::shapeKey));
+
+            Map<String, String> renaming = new HashMap<>();
+            List<String> canonicalHead = rename(head, renaming);
+            TreeSet<String> canonicalAtoms = new TreeSet<>();
+            for (Atom atom : atoms) {
+                canonicalAtoms.add(atom.predicate + "(" + String.join(", ", rename(atom.terms, renaming)) + ")");
+            }
+            canonicalForm = headPredicate + "(" + String.join(", ", canonicalHead) + ") :- "
+                    + String.join(", ", canonicalAtoms) + " .";
+        }
+        return canonicalForm;
+    }
+
+    private static String shapeKey(Atom atom) {
+        StringBuilder key = new StringBuilder(atom.predicate).append('(');
+        for (String term : atom.terms) {
+            key.append(isVariable(term) ? "?" : term).append(',');
+        }
+        return key.append(')').toString();
+    }
+
+    private static List<String> rename(List<String> terms, Map<String, String> renaming) {
+        List<String> renamed = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            renamed.add(isVariable(term) ? renaming.computeIfAbsent(term, t -> "v" + renaming.size()) : term);
+        }
+        return renamed;
+    }
+
+    /**
+     * Returns true if every answer of this rule is an answer of {@code other}, i.e. if there is a
+     * homomorphism from {@code other} into this rule that maps head onto head.
+     */
+    boolean isContainedIn(DatalogRule other) {
+        if (!headPredicate.equals(other.headPredicate) || head.size() != other.head.size()) {
+            return false;
+        }
+        Map<String, String> mapping = new HashMap<>();
+        for (int i = 0; i < head.size(); i++) {
+            if (!bind(other.head.get(i), head.get(i), mapping)) {
+                return false;
+            }
+        }
+
+        Map<String, List<Atom>> targetsBySignature = new HashMap<>();
+        for (Atom atom : body) {
+            targetsBySignature.computeIfAbsent(atom.signature(), s -> new ArrayList<>()).add(atom);
+        }
+        List<Atom> sources = new ArrayList<>(other.body);
+        for (Atom atom : sources) {
+            if (!targetsBySignature.containsKey(atom.signature())) {
+                return false;
+            }
+        }
+        // Most constrained atoms first keeps the backtracking shallow
+        sources.sort(Comparator.comparingInt(a -> targetsBySignature.get(a.signature()).size()));
+        return extend(sources, 0, targetsBySignature, mapping);
+    }
+
+    private static boolean extend(List<Atom> sources, int index, Map<String, List<Atom>> targetsBySignature,
+                                  Map<String, String> mapping) {
+        if (index == sources.size()) {
+            return true;
+        }
+        Atom source = sources.get(index);
+        for (Atom target : targetsBySignature.get(source.signature())) {
+            Map<String, String> extended = new HashMap<>(mapping);
+            boolean consistent = true;
+            for (int i = 0; i < source.terms.size() && consistent; i++) {
+                consistent = bind(source.terms.get(i), target.terms.get(i), extended);
+            }
+            if (consistent && extend(sources, index + 1, targetsBySignature, extended)) {
+                mapping.putAll(extended);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean bind(String from, String to, Map<String, String> mapping) {
+        if (!isVariable(from)) {
+            return from.equals(to);
+        }
+        String bound = mapping.putIfAbsent(from, to);
+        return bound == null || bound.equals(to);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
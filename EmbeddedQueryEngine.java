@@ -0,0 +1,140 @@
+package se.umea.mapgen;
+
+import com.google.common.collect.ImmutableMultimap;
+import it.unibz.inf.ontop.injection.OntopSQLOWLAPIConfiguration;
+import it.unibz.inf.ontop.rdf4j.repository.OntopRepository;
+import it.unibz.inf.ontop.rdf4j.repository.OntopRepositoryConnection;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Runs SPARQL queries on an Ontop engine inside the JVM, without going through the HTTP endpoint.
+ * <p>
+ * The engine is started once from an OBDA file, an OWL file and a JDBC URL. The user and roles are
+ * passed as the {@code x-user} and {@code x-roles} headers of the query context, the same ones the
+ * endpoint forwards to {@code ontop_contains_role}. Prepared queries are kept in a bounded
+ * per-thread cache, so that repeated queries reuse their parsed form and hit Ontop's reformulation
+ * cache instead of being rewritten again. Results are streamed to the caller as RDF4J
+ * {@link BindingSet}s.
+ */
+class EmbeddedQueryEngine implements AutoCloseable {
+
+    static final int DEFAULT_PREPARED_QUERY_CACHE_SIZE = 256;
+
+    private final OntopRepository repository;
+    private final int preparedQueryCacheSize;
+    private final Set<ConnectionState> connections = ConcurrentHashMap.newKeySet();
+    // RDF4J connections are not thread-safe, so every thread gets its own
+    private final ThreadLocal<ConnectionState> connection = ThreadLocal.withInitial(this::openConnection);
+
+    EmbeddedQueryEngine(String obdaFile, String owlFile, String jdbcUrl, String jdbcUser, String jdbcPassword) {
+        this(obdaFile, owlFile, jdbcUrl, jdbcUser, jdbcPassword, new Properties(), DEFAULT_PREPARED_QUERY_CACHE_SIZE);
+    }
+
+    EmbeddedQueryEngine(String obdaFile, String owlFile, String jdbcUrl, String jdbcUser, String jdbcPassword,
+                        Properties properties, int preparedQueryCacheSize) {
+        long start = System.nanoTime();
+        OntopSQLOWLAPIConfiguration configuration = OntopSQLOWLAPIConfiguration.defaultBuilder()
+                .nativeOntopMappingFile(obdaFile)
+                .ontologyFile(owlFile)
+                .jdbcUrl(jdbcUrl)
+                .jdbcUser(jdbcUser)
+                .jdbcPassword(jdbcPassword)
+                .properties(properties)
+                .build();
+        this.repository = OntopRepository.defaultRepository(configuration);
+        this.repository.init();
+        this.preparedQueryCacheSize = preparedQueryCacheSize;
+        System.out.printf("Embedded Ontop engine started in %.3f seconds%n", (System.nanoTime() - start) / 1e9);
+    }
+
+    private static final class ConnectionState {
+        final OntopRepositoryConnection connection;
+        final Map<String, TupleQuery> preparedQueries;
+
+        ConnectionState(OntopRepositoryConnection connection, int cacheSize) {
+            this.connection = connection;
+            this.preparedQueries = new LinkedHashMap<String, TupleQuery>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TupleQuery> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+    }
+
+    private ConnectionState openConnection() {
+        ConnectionState state = new ConnectionState(repository.getConnection(), preparedQueryCacheSize);
+        connections.add(state);
+        return state;
+    }
+
+    Session session(String username, String userRoles) {
+        return new Session(username, userRoles);
+    }
+
+    /**
+     * Queries on behalf of one user and role set.
+     */
+    final class Session {
+        private final ImmutableMultimap<String, String> headers;
+        private final String cacheKeyPrefix;
+
+        private Session(String username, String userRoles) {
+            this.headers = ImmutableMultimap.of("x-user", username, "x-roles", userRoles);
+            this.cacheKeyPrefix = username + '\n' + userRoles + '\n';
+        }
+
+        /**
+         * Runs the query and streams its results to {@code bindingHandler}.
+         *
+         * @param bindingHandler receives each binding set, or {@code null} to only count the results
+         * @return the number of results
+         */
+        long execute(String query, Consumer<? super BindingSet> bindingHandler) {
+            long count = 0;
+            try (TupleQueryResult result = prepare(query).evaluate()) {
+                while (result.hasNext()) {
+                    BindingSet bindings = result.next();
+                    if (bindingHandler != null) {
+                        bindingHandler.accept(bindings);
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private TupleQuery prepare(String query) {
+            ConnectionState state = connection.get();
+            return state.preparedQueries.computeIfAbsent(cacheKeyPrefix + query,
+                    key -> state.connection.prepareTupleQuery(QueryLanguage.SPARQL, query, null, headers));
+        }
+    }
+
+    /**
+     * Converts a binding set to the variable-to-value form produced by {@link SparqlResultReader}.
+     */
+    static Map<String, String> toMap(BindingSet bindings) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (String name : bindings.getBindingNames()) {
+            map.put(name, bindings.getValue(name) == null ? null : bindings.getValue(name).stringValue());
+        }
+        return map;
+    }
+
+    @Override
+    public void close() {
+        for (ConnectionState state : connections) {
+            state.connection.close();
+        }
+        connections.clear();
+        repository.shutDown();
+    }
+}
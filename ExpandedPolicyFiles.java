@@ -0,0 +1,22 @@
+package se.umea.mapgen;
+
+/**
+ * Names of the files PolicyExpansion writes for a role, shared with the tools that read them back
+ * without depending on the expansion itself.
+ */
+final class ExpandedPolicyFiles {
+
+    private ExpandedPolicyFiles() {
+    }
+
+    /** Returns the name of the JSON file that holds the expanded policy of {@code role}. */
+    static String jsonFileName(String role) {
+        return "expanded_policy_" + sanitizeRoleName(role) + ".json";
+    }
+
+    static String sanitizeRoleName(String role) {
+        // Replace spaces and special characters to make a valid filename
+        return role.replaceAll("\\s+", "_")
+                   .replaceAll("[^a-zA-Z0-9_]", "");
+    }
+}
@@ -0,0 +1,63 @@
+package se.umea.mapgen;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.util.*;
+
+/**
+ * The distinct rules of an expansion, in the order they were first produced.
+ * <p>
+ * A reformulated rule is a union whose branches often differ only in variable names, so rules are
+ * deduplicated as they arrive instead of after the whole union has been collected. Only a 128-bit
+ * hash of each rule's canonical form is kept for the lookup, which keeps the memory of an expansion
+ * proportional to its distinct rules. Rules that cannot be parsed as Datalog are hashed verbatim.
+ */
+final class ExpandedRuleSet {
+
+    private final Set<HashCode> seen = new HashSet<>();
+    private final List<String> rules = new ArrayList<>();
+    private int produced;
+
+    /** Adds a rule unless an equal rule up to variable renaming and atom order is already present. */
+    boolean add(String rule) {
+        produced++;
+        if (!seen.add(canonicalHash(rule))) {
+            return false;
+        }
+        rules.add(rule);
+        return true;
+    }
+
+    void addAll(Collection<String> rules) {
+        rules.forEach(this::add);
+    }
+
+    List<String> rules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    int size() {
+        return rules.size();
+    }
+
+    /** Number of rules offered to the set, including duplicates. */
+    int produced() {
+        return produced;
+    }
+
+    int duplicates() {
+        return produced - rules.size();
+    }
+
+    private static HashCode canonicalHash(String rule) {
+        String key;
+        try {
+            key = DatalogRule.parse(rule).canonicalForm();
+        } catch (IllegalArgumentException e) {
+            key = rule;
+        }
+        return Hashing.murmur3_128().hashString(key, Charsets.UTF_8);
+    }
+}
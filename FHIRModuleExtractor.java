@@ -2,21 +2,31 @@ package se.umea.mapgen;
 
 import org.semanticweb.owlapi.apibinding.OWLManager;
 import org.semanticweb.owlapi.model.*;
-import org.semanticweb.owlapi.reasoner.OWLReasoner;
-import org.semanticweb.owlapi.reasoner.structural.StructuralReasonerFactory;
 import uk.ac.manchester.cs.owlapi.modularity.ModuleType;
 import uk.ac.manchester.cs.owlapi.modularity.SyntacticLocalityModuleExtractor;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
-import java.util.HashSet;
-import java.util.Scanner;
-import java.util.Set;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class FHIRModuleExtractor {
 
+    private static final IRI FHIR_IRI = IRI.create("http://hl7.org/fhir/");
+    private static final String SNAPSHOT_FORMAT = "fhir-axioms-v1";
+
     public static void main(String[] args) throws Exception {
+        // Batch mode: many named seed signatures from a file, see runBatch
+        if (args.length > 0 && args[0].equals("--batch")) {
+            runBatch(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         // Create OWL ontology manager
         OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
 
@@ -30,8 +40,8 @@ public class FHIRModuleExtractor {
         // Define the IRI base for FHIR concepts
         IRI fhirIri = IRI.create("http://hl7.org/fhir/");
 
-        // Create a reasoner
-        OWLReasoner reasoner = new StructuralReasonerFactory().createReasoner(ontology);
+        // Index the class hierarchy once instead of asking a reasoner for every seed class
+        ClassHierarchyIndex hierarchy = new ClassHierarchyIndex(ontology);
 
         // Define a set to hold the seed signature for module extraction
         Set<OWLEntity> seedSignature = new HashSet<>();
@@ -67,13 +77,7 @@ public class FHIRModuleExtractor {
         }
 
         // Add subclasses of the key FHIR concepts to the seed signature
-        Set<OWLEntity> subclasses = new HashSet<>();
-        for (OWLEntity entity : seedSignature) {
-            if (entity.isOWLClass()) {
-                subclasses.addAll(reasoner.getSubClasses(entity.asOWLClass(), false).getFlattened());
-            }
-        }
-        seedSignature.addAll(subclasses);
+        hierarchy.addSubClasses(seedSignature);
 
         // Extract the module using the Syntactic Locality Module Extractor
         SyntacticLocalityModuleExtractor moduleExtractor = new SyntacticLocalityModuleExtractor(manager, ontology, ModuleType.STAR);
@@ -97,4 +101,161 @@ public class FHIRModuleExtractor {
         // Close the scanner
         scanner.close();
     }
+
+    /**
+     * Seed signature of one module, read from a batch seed file.
+     */
+    static final class ModuleSeed {
+        final String name;
+        final Set<OWLEntity> signature = new HashSet<>();
+
+        ModuleSeed(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Reads seed signatures in the form
+     * <pre>
+     * [pharmacist]
+     * class Patient
+     * objectProperty Patient.gender
+     * dataProperty value
+     * </pre>
+     * Names are resolved against the FHIR namespace; blank lines and lines starting with '#' are ignored.
+     */
+    static List<ModuleSeed> readSeedFile(String seedFile, OWLDataFactory dataFactory) throws IOException {
+        List<ModuleSeed> seeds = new ArrayList<>();
+        ModuleSeed current = null;
+        for (String rawLine : Files.readAllLines(Paths.get(seedFile), StandardCharsets.UTF_8)) {
+            String line = rawLine.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.startsWith("[") && line.endsWith("]")) {
+                current = new ModuleSeed(line.substring(1, line.length() - 1).trim());
+                seeds.add(current);
+                continue;
+            }
+            String[] parts = line.split("\\s+", 2);
+            if (current == null || parts.length != 2) {
+                System.out.println("Skipping invalid line: " + line);
+                continue;
+            }
+            IRI iri = FHIR_IRI.resolve(parts[1]);
+            switch (parts[0]) {
+                case "class":
+                    current.signature.add(dataFactory.getOWLClass(iri));
+                    break;
+                case "objectProperty":
+                    current.signature.add(dataFactory.getOWLObjectProperty(iri));
+                    break;
+                case "dataProperty":
+                    current.signature.add(dataFactory.getOWLDataProperty(iri));
+                    break;
+                default:
+                    System.out.println("Skipping invalid line: " + line);
+            }
+        }
+        return seeds;
+    }
+
+    /**
+     * Loads the ontology from a snapshot of its axioms when one exists for the current version of the
+     * source file, and otherwise parses the source and saves a new snapshot. The snapshot is a gzipped
+     * Java serialisation of the axioms, keyed by the size and modification time of the source.
+     */
+    static OWLOntology loadOntology(OWLOntologyManager manager, Path source, Path snapshot) throws Exception {
+        String sourceKey = SNAPSHOT_FORMAT + ":" + Files.size(source) + ":" + Files.getLastModifiedTime(source).toMillis();
+        long start = System.nanoTime();
+        if (Files.exists(snapshot)) {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+                    new GZIPInputStream(Files.newInputStream(snapshot))))) {
+                if (sourceKey.equals(in.readUTF())) {
+                    @SuppressWarnings("unchecked")
+                    List<OWLAxiom> axioms = (List<OWLAxiom>) in.readObject();
+                    OWLOntology ontology = manager.createOntology(new HashSet<>(axioms));
+                    System.out.printf("Loaded %d axioms from snapshot %s in %.3f seconds%n",
+                            axioms.size(), snapshot, (System.nanoTime() - start) / 1e9);
+                    return ontology;
+                }
+                System.out.println("Snapshot " + snapshot + " is out of date, parsing " + source);
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                System.out.println("Could not read snapshot " + snapshot + " (" + e.getMessage() + "), parsing " + source);
+            }
+        }
+
+        OWLOntology ontology = manager.loadOntologyFromOntologyDocument(source.toFile());
+        System.out.printf("Parsed %s in %.3f seconds%n", source, (System.nanoTime() - start) / 1e9);
+
+        Path tmp = Files.createTempFile(snapshot.toAbsolutePath().getParent(), "snapshot", ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeUTF(sourceKey);
+            out.writeObject(new ArrayList<>(ontology.getAxioms()));
+        }
+        Files.move(tmp, snapshot, java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Saved ontology snapshot to " + snapshot);
+        return ontology;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: FHIRModuleExtractor --batch <seed file> [--ontology <file>] [--snapshot <file>]");
+        System.out.println("         [--output-dir <dir>] [--threads <n>]");
+        System.out.println("Without --batch the seed signature is read interactively and one module is written to fhir-module.owl.");
+    }
+
+    /**
+     * Extracts one STAR module per seed signature in the seed file. The ontology is loaded once, the
+     * class hierarchy is computed once for all seeds, and the modules are extracted in parallel with
+     * one {@link SyntacticLocalityModuleExtractor} per worker thread over the shared ontology.
+     */
+    static void runBatch(String[] args) throws Exception {
+        if (args.length == 0 || args.length % 2 != 1) {
+            printUsage();
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        Path source = Paths.get(options.getOrDefault("--ontology", "fhir.ttl"));
+        Path snapshot = Paths.get(options.getOrDefault("--snapshot", source + ".snapshot.gz"));
+        Path outputDir = Paths.get(options.getOrDefault("--output-dir", "."));
+        int threads = Integer.parseInt(options.getOrDefault("--threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+        OWLOntology ontology = loadOntology(manager, source, snapshot);
+        List<ModuleSeed> seeds = readSeedFile(args[0], manager.getOWLDataFactory());
+        System.out.println("Read " + seeds.size() + " seed signatures from " + args[0]);
+
+        // Add subclasses of the seed classes, computing the hierarchy once for all seeds
+        ClassHierarchyIndex hierarchy = new ClassHierarchyIndex(ontology);
+        for (ModuleSeed seed : seeds) {
+            hierarchy.addSubClasses(seed.signature);
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ThreadLocal<SyntacticLocalityModuleExtractor> extractors = ThreadLocal.withInitial(
+                () -> new SyntacticLocalityModuleExtractor(manager, ontology, ModuleType.STAR));
+        Map<ModuleSeed, Future<Set<OWLAxiom>>> modules = new LinkedHashMap<>();
+        for (ModuleSeed seed : seeds) {
+            modules.put(seed, executor.submit(() -> extractors.get().extract(seed.signature)));
+        }
+        executor.shutdown();
+
+        Files.createDirectories(outputDir);
+        for (Map.Entry<ModuleSeed, Future<Set<OWLAxiom>>> entry : modules.entrySet()) {
+            Set<OWLAxiom> module = entry.getValue().get();
+            Path outputFile = outputDir.resolve("fhir-module-" + entry.getKey().name.replaceAll("[^a-zA-Z0-9_-]", "_") + ".owl");
+            OWLOntologyManager moduleManager = OWLManager.createOWLOntologyManager();
+            OWLOntology moduleOntology = moduleManager.createOntology(module, IRI.create("http://hl7.org/fhir"));
+            try (OutputStream os = new FileOutputStream(outputFile.toFile())) {
+                moduleManager.saveOntology(moduleOntology, os);
+            }
+            System.out.println("Module " + entry.getKey().name + ": " + module.size() + " axioms saved to " + outputFile);
+        }
+        System.out.printf("Extracted %d modules in %.3f seconds%n", seeds.size(), (System.nanoTime() - start) / 1e9);
+    }
 }
@@ -0,0 +1,253 @@
+package se.umea.mapgen;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Multi-client load generator for the RBAC SPARQL endpoint.
+ * <p>
+ * The workload is a file of {@code user,role,query_file} lines. Requests are sent from many concurrent
+ * clients, either in a closed loop (each client sends its next request as soon as the previous one
+ * returns) or at a fixed rate. In fixed-rate mode latency is measured from the intended start time,
+ * so a slow endpoint cannot hide queueing delay. A warm-up phase runs before measurement starts, and
+ * latencies are reported per role and per query.
+ */
+class LoadGenerator {
+
+    enum Mode { CLOSED, FIXED_RATE }
+
+    static final class Request {
+        final String user;
+        final String role;
+        final String queryName;
+        final String query;
+
+        Request(String user, String role, String queryName, String query) {
+            this.user = user;
+            this.role = role;
+            this.queryName = queryName;
+            this.query = query;
+        }
+    }
+
+    private static final class Stats {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    private final SparqlClient client;
+    private final Map<String, SparqlClient.Session> sessions = new ConcurrentHashMap<>();
+    private final List<Request> workload;
+    private final int clients;
+    private final boolean virtualThreads;
+
+    private final Stats overall = new Stats();
+    private final Map<String, Stats> statsByRole = new ConcurrentSkipListMap<>();
+    private final Map<String, Stats> statsByQuery = new ConcurrentSkipListMap<>();
+    private volatile boolean recording;
+
+    LoadGenerator(SparqlClient client, List<Request> workload, int clients, boolean virtualThreads) {
+        this.client = client;
+        this.workload = workload;
+        this.clients = clients;
+        this.virtualThreads = virtualThreads;
+    }
+
+    static List<Request> readWorkload(String workloadFile) throws IOException {
+        List<Request> workload = new ArrayList<>();
+        Path base = Paths.get(workloadFile).toAbsolutePath().getParent();
+        for (String line : Files.readAllLines(Paths.get(workloadFile))) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split(",");
+            if (parts.length != 3) {
+                System.out.println("Skipping invalid line: " + line);
+                continue;
+            }
+            Path queryFile = base.resolve(parts[2].trim());
+            String query = new String(Files.readAllBytes(queryFile), StandardCharsets.UTF_8);
+            workload.add(new Request(parts[0].trim(), parts[1].trim(), queryFile.getFileName().toString(), query));
+        }
+        return workload;
+    }
+
+    /**
+     * Runs an unrecorded warm-up phase followed by the measured phase.
+     *
+     * @param rate requests per second in {@link Mode#FIXED_RATE} mode, ignored otherwise
+     * @return the length of the measured phase in nanoseconds
+     */
+    long run(Mode mode, double rate, long warmupNanos, long durationNanos) throws InterruptedException {
+        if (warmupNanos > 0) {
+            recording = false;
+            runPhase(mode, rate, warmupNanos);
+        }
+        recording = true;
+        long start = System.nanoTime();
+        runPhase(mode, rate, durationNanos);
+        return System.nanoTime() - start;
+    }
+
+    private void runPhase(Mode mode, double rate, long durationNanos) throws InterruptedException {
+        ExecutorService executor = newExecutor();
+        long end = System.nanoTime() + durationNanos;
+        try {
+            if (mode == Mode.CLOSED) {
+                for (int c = 0; c < clients; c++) {
+                    int offset = c;
+                    executor.execute(() -> {
+                        for (int i = offset; System.nanoTime() < end; i++) {
+                            execute(workload.get(i % workload.size()), System.nanoTime());
+                        }
+                    });
+                }
+            } else {
+                // Offsets are computed in double, so fractional periods do not drift and k * period cannot overflow
+                double period = TimeUnit.SECONDS.toNanos(1) / rate;
+                long start = System.nanoTime();
+                for (long k = 0; ; k++) {
+                    double offset = k * period;
+                    if (offset >= end - start) {
+                        break;
+                    }
+                    long intendedStart = start + (long) offset;
+                    long wait = intendedStart - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    Request request = workload.get((int) (k % workload.size()));
+                    executor.execute(() -> execute(request, intendedStart));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads need Java 21 or later, using a pool of " + clients + " threads");
+            }
+        }
+        return Executors.newFixedThreadPool(clients);
+    }
+
+    private void execute(Request request, long intendedStart) {
+        SparqlClient.Session session = sessions.computeIfAbsent(request.user + '\n' + request.role,
+                key -> client.session(request.user, request.role));
+        long resultCount;
+        try {
+            resultCount = session.execute(request.query, SparqlResultReader.Format.JSON, null);
+        } catch (Exception e) {
+            resultCount = -1;
+        }
+        long latency = System.nanoTime() - intendedStart;
+        if (!recording) {
+            return;
+        }
+        boolean failed = resultCount < 0;
+        for (Stats stats : Arrays.asList(overall,
+                statsByRole.computeIfAbsent(request.role, r -> new Stats()),
+                statsByQuery.computeIfAbsent(request.queryName, q -> new Stats()))) {
+            if (failed) {
+                stats.errors.incrementAndGet();
+            } else {
+                stats.latencies.record(latency);
+            }
+        }
+    }
+
+    void printReport(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%n%-32s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+                "Scope", "Count", "Errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        printRow("all", overall, seconds);
+        for (Map.Entry<String, Stats> entry : statsByRole.entrySet()) {
+            printRow("role " + entry.getKey(), entry.getValue(), seconds);
+        }
+        for (Map.Entry<String, Stats> entry : statsByQuery.entrySet()) {
+            printRow("query " + entry.getKey(), entry.getValue(), seconds);
+        }
+    }
+
+    private static void printRow(String scope, Stats stats, double seconds) {
+        LatencyHistogram h = stats.latencies;
+        System.out.printf("%-32s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                scope, h.count(), stats.errors.get(), h.count() / seconds,
+                h.percentileNanos(50) / 1e6, h.percentileNanos(90) / 1e6, h.percentileNanos(99) / 1e6,
+                h.percentileNanos(99.9) / 1e6, h.maxNanos() / 1e6);
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: LoadGenerator --workload <file> [--endpoint <url> | --stub]");
+        System.out.println("         [--clients <n>] [--virtual-threads] [--mode closed|fixed-rate] [--rate <req/s>]");
+        System.out.println("         [--http2] [--timeout <seconds>]");
+        System.out.println("         [--warmup <seconds>] [--duration <seconds>]");
+        System.out.println("Workload lines have the form: user,role,query_file");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (name.equals("--stub") || name.equals("--virtual-threads") || name.equals("--http2")) {
+                options.put(name, "true");
+            } else if (name.startsWith("--") && i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        if (!options.containsKey("--workload")) {
+            printUsage();
+            return;
+        }
+
+        List<Request> workload = readWorkload(options.get("--workload"));
+        if (workload.isEmpty()) {
+            System.out.println("No valid requests found in workload.");
+            return;
+        }
+        int clients = Integer.parseInt(options.getOrDefault("--clients", "8"));
+        Mode mode = options.getOrDefault("--mode", "closed").equals("fixed-rate") ? Mode.FIXED_RATE : Mode.CLOSED;
+        double rate = Double.parseDouble(options.getOrDefault("--rate", "10"));
+        if (!(rate > 0) || TimeUnit.SECONDS.toNanos(1) / rate < 1) {
+            System.out.println("❌ --rate must be more than 0 and at most 1e9 requests per second: " + options.get("--rate"));
+            return;
+        }
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("--warmup", "10")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("--duration", "60")));
+
+        HttpClient.Version version = options.containsKey("--http2") ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+        Duration timeout = options.containsKey("--timeout") ? Duration.ofSeconds(Long.parseLong(options.get("--timeout"))) : null;
+
+        StubSparqlEndpoint stub = options.containsKey("--stub") ? new StubSparqlEndpoint(0, 100, 5) : null;
+        String endpointUrl = stub != null ? stub.url() : options.getOrDefault("--endpoint", "http://localhost:8080/sparql");
+        try (SparqlClient client = new SparqlClient(endpointUrl, version, Duration.ofSeconds(10), timeout)) {
+            System.out.println("Running " + mode + " load against " + endpointUrl + " with " + clients + " clients");
+
+            LoadGenerator generator = new LoadGenerator(client, workload, clients, options.containsKey("--virtual-threads"));
+            long elapsed = generator.run(mode, rate, warmup, duration);
+            generator.printReport(elapsed);
+        } finally {
+            if (stub != null) {
+                stub.close();
+            }
+        }
+    }
+}
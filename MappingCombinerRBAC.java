@@ -1,17 +1,21 @@
 package se.umea.mapgen;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class MappingCombinerRBAC {
 
-    private static final Pattern WHERE_PATTERN = Pattern.compile(
-            "\\bWHERE\\b", Pattern.CASE_INSENSITIVE
-    );
+    private static final String MAPPING_SEPARATOR = "\n\n";
 
     public static void main(String[] args) throws IOException {
         Scanner scanner = new Scanner(System.in);
@@ -26,12 +30,29 @@ public class MappingCombinerRBAC {
             return;
         }
 
-        String outputPath = "RBACmappings.obda";
-        String combinedMappings = combineMappingsWithRoles(mappingFiles);
-        Files.write(Paths.get(outputPath), combinedMappings.getBytes(StandardCharsets.UTF_8));
+        System.out.print("Collapse mappings that only differ by role into one mapping? (y/N): ");
+        boolean collapseRoles = scanner.nextLine().trim().equalsIgnoreCase("y");
+
+        System.out.print("Merge mappings with the same SQL source into multi-triple mappings? (y/N): ");
+        boolean mergeSources = scanner.nextLine().trim().equalsIgnoreCase("y");
+
+        Path outputPath = Paths.get("RBACmappings.obda");
+        CompilationMetrics metrics = new CompilationMetrics("MappingCombinerRBAC");
+        if (collapseRoles) {
+            combineMappingsCollapsingRoles(mappingFiles, outputPath, metrics);
+        } else {
+            combineMappingsWithRoles(mappingFiles, outputPath, Runtime.getRuntime().availableProcessors(), metrics);
+        }
+        if (mergeSources) {
+            mergeMappingsWithSameSource(outputPath, metrics);
+        }
         System.out.println("\nCombined mapping file created at: " + outputPath);
+
+        Path metricsFile = Paths.get("combiner_metrics.json");
+        metrics.write(metricsFile);
+        System.out.println("Timings and counts written to " + metricsFile);
     }
-    private static List<MappingFile> readConfigurationFile(String configPath) throws IOException {
+    static List<MappingFile> readConfigurationFile(String configPath) throws IOException {
         List<MappingFile> mappingFiles = new ArrayList<>();
         List<String> lines = Files.readAllLines(Paths.get(configPath));
         
@@ -60,101 +81,278 @@ public class MappingCombinerRBAC {
         
         return mappingFiles;
     }
-    private static String combineMappingsWithRoles(List<MappingFile> mappingFiles) throws IOException {
-        StringBuilder output = new StringBuilder();
-        boolean firstFile = true;
-        List<String> allMappings = new ArrayList<>();
-
-        for (MappingFile mf : mappingFiles) {
-            String content = Files.readString(Paths.get(mf.filePath));
+    /**
+     * Streams every mapping file through the role rewriting and into {@code outputPath}. Files are
+     * processed in parallel into temporary segments, which are then appended in configuration order.
+     */
+    static void combineMappingsWithRoles(List<MappingFile> mappingFiles, Path outputPath, int parallelism,
+                                         CompilationMetrics metrics) throws IOException {
+        List<String> problems = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, mappingFiles.size())));
+        List<Future<Segment>> segments = new ArrayList<>();
+        try {
+            for (int i = 0; i < mappingFiles.size(); i++) {
+                MappingFile mf = mappingFiles.get(i);
+                // Handle prefix declaration (only from first file)
+                boolean keepPrefixes = i == 0;
+                segments.add(executor.submit(() -> writeSegment(mf, keepPrefixes, metrics)));
+            }
 
-            // Handle prefix declaration (only from first file)
-            if (firstFile) {
-                String prefixSection = extractPrefixSection(content);
-                if (!prefixSection.isEmpty()) {
-                    output.append(prefixSection).append("\n\n");
+            try (CompilationMetrics.Timer ignored = metrics.time("assemble", outputPath.toString());
+                 FileChannel out = FileChannel.open(outputPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                boolean firstMapping = true;
+                for (int i = 0; i < segments.size(); i++) {
+                    Segment segment = await(segments.get(i));
+                    try {
+                        if (i == 0) {
+                            if (!segment.prefixSection.isEmpty()) {
+                                write(out, segment.prefixSection + "\n\n");
+                            }
+                            write(out, "[MappingDeclaration] @collection [[\n");
+                        }
+                        problems.addAll(segment.problems);
+                        if (segment.mappingCount > 0) {
+                            if (!firstMapping) {
+                                write(out, MAPPING_SEPARATOR);
+                            }
+                            transferAll(segment.file, out);
+                            firstMapping = false;
+                        }
+                    } finally {
+                        Files.deleteIfExists(segment.file);
+                    }
+                }
+                if (segments.isEmpty()) {
+                    write(out, "[MappingDeclaration] @collection [[\n");
                 }
-                firstFile = false;
+                write(out, "\n]]");
             }
-
-            // Process mappings
-            List<String> mappings = extractMappings(content);
-            for (String mapping : mappings) {
-                allMappings.add(processMapping(mapping, mf.role));
+            reportProblems(problems);
+        } finally {
+            executor.shutdownNow();
+            for (Future<Segment> segment : segments) {
+                if (segment.isDone() && !segment.isCancelled()) {
+                    try {
+                        Files.deleteIfExists(segment.get().file);
+                    } catch (Exception ignored) {
+                        // The segment failed or was already removed
+                    }
+                }
             }
         }
+    }
 
-        output.append("[MappingDeclaration] @collection [[\n");
-        output.append(String.join("\n\n", allMappings));
-        output.append("\n]]");
+    private static Segment writeSegment(MappingFile mf, boolean keepPrefixes, CompilationMetrics metrics) throws IOException {
+        Path file = Files.createTempFile("rbac-segment", ".obda");
+        String prefixSection = "";
+        int mappingCount = 0;
+        List<String> problems = new ArrayList<>();
+        long parseNanos;
+        long rewriteNanos = 0;
+        try (ObdaReader reader = new ObdaReader(Paths.get(mf.filePath));
+             Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            long start = System.nanoTime();
+            String prefixes = reader.readPrefixSection();
+            if (keepPrefixes) {
+                prefixSection = prefixes;
+            }
 
-        return output.toString();
+            // Process mappings
+            ObdaReader.Mapping mapping;
+            parseNanos = System.nanoTime() - start;
+            while (true) {
+                start = System.nanoTime();
+                mapping = reader.next();
+                long parsed = System.nanoTime();
+                parseNanos += parsed - start;
+                if (mapping == null) {
+                    break;
+                }
+                if (mappingCount > 0) {
+                    writer.write(MAPPING_SEPARATOR);
+                }
+                writeMapping(writer, mapping, roleCondition(Collections.singleton(mf.role)), problems);
+                mappingCount++;
+                rewriteNanos += System.nanoTime() - parsed;
+            }
+        }
+        metrics.recordMappingFile(mf.filePath, mf.role, mappingCount, problems.size(), parseNanos, rewriteNanos);
+        return new Segment(file, prefixSection, mappingCount, problems);
     }
 
-    private static String extractPrefixSection(String content) {
-        int startIdx = content.indexOf("[PrefixDeclaration]");
-        if (startIdx == -1) return "";
+    /**
+     * Emits one mapping per distinct (target, source) pair instead of one copy per role. The guard of
+     * each mapping admits every role whose configured files contain that mapping, so a user sees the same
+     * triples as with the per-role copies.
+     */
+    static void combineMappingsCollapsingRoles(List<MappingFile> mappingFiles, Path outputPath,
+                                               CompilationMetrics metrics) throws IOException {
+        Map<List<String>, RoleSet> mappings = new LinkedHashMap<>();
+        String prefixSection = "";
+        int roleSpecificMappings = 0;
+        List<String> problems = new ArrayList<>();
 
-        int endIdx = content.indexOf("[MappingDeclaration]");
-        if (endIdx == -1) endIdx = content.length();
+        for (int i = 0; i < mappingFiles.size(); i++) {
+            MappingFile mf = mappingFiles.get(i);
+            long start = System.nanoTime();
+            int fileMappings = 0;
+            try (ObdaReader reader = new ObdaReader(Paths.get(mf.filePath))) {
+                String prefixes = reader.readPrefixSection();
+                if (i == 0) {
+                    prefixSection = prefixes;
+                }
+                ObdaReader.Mapping mapping;
+                while ((mapping = reader.next()) != null) {
+                    List<String> key = new ArrayList<>(mapping.headerLines);
+                    key.add(String.valueOf(mapping.source));
+                    mappings.computeIfAbsent(key, k -> new RoleSet()).add(mapping, mf.role);
+                    fileMappings++;
+                }
+            }
+            roleSpecificMappings += fileMappings;
+            metrics.recordMappingFile(mf.filePath, mf.role, fileMappings, 0, System.nanoTime() - start, 0);
+        }
 
-        return content.substring(startIdx, endIdx).trim();
+        try (CompilationMetrics.Timer ignored = metrics.time("collapsedRewrite", outputPath.toString());
+             Writer writer = Files.newBufferedWriter(outputPath, StandardCharsets.UTF_8)) {
+            if (!prefixSection.isEmpty()) {
+                writer.write(prefixSection + "\n\n");
+            }
+            writer.write("[MappingDeclaration] @collection [[\n");
+            boolean firstMapping = true;
+            for (RoleSet roleSet : mappings.values()) {
+                if (!firstMapping) {
+                    writer.write(MAPPING_SEPARATOR);
+                }
+                writeMapping(writer, roleSet.mapping, roleCondition(roleSet.roles), problems);
+                firstMapping = false;
+            }
+            writer.write("\n]]");
+        }
+        metrics.count("collapsedMappings", mappings.size());
+        metrics.count("wrappedSources", problems.size());
+        System.out.println("Collapsed " + roleSpecificMappings + " role-specific mappings into " + mappings.size());
+        reportProblems(problems);
     }
 
-    private static List<String> extractMappings(String content) {
-        List<String> mappings = new ArrayList<>();
-        int mappingStart = content.indexOf("mappingId");
-        int collectionStart = content.indexOf("@collection [[") + "@collection [[".length();
-
-        if (mappingStart == -1 || collectionStart == -1)
-            return mappings;
+    /**
+     * Optimisation pass over a combined file: mappings whose guarded sources are the same query are
+     * merged into one mapping carrying all their targets, so Ontop scans each source once.
+     */
+    static MappingSourceMerger.Result mergeMappingsWithSameSource(Path combinedFile, CompilationMetrics metrics) throws IOException {
+        MappingSourceMerger.Result result;
+        try (CompilationMetrics.Timer ignored = metrics.time("mergeSources", combinedFile.toString())) {
+            result = MappingSourceMerger.mergeInPlace(combinedFile);
+        }
+        metrics.count("removedSources", result.removedSources());
+        System.out.println("Merged mappings with the same source: " + result.mappings + " -> " + result.written
+                + " mappings, " + result.removedSources() + " source queries removed");
+        return result;
+    }
 
-        String mappingSection = content.substring(collectionStart, content.lastIndexOf("]]"));
-        String[] mappingBlocks = mappingSection.split("(?=mappingId\\s+)");
+    private static void writeMapping(Writer writer, ObdaReader.Mapping mapping, String roleCondition,
+                                     List<String> problems) throws IOException {
+        for (String line : mapping.headerLines) {
+            writer.write(line);
+            writer.write('\n');
+        }
+        if (mapping.source != null && !mapping.source.isEmpty()) {
+            writer.write("source     ");
+            writer.write(modifySourceQuery(mapping.id(), mapping.source, roleCondition, problems));
+        }
+    }
 
-        for (String block : mappingBlocks) {
-            if (block.trim().isEmpty()) continue;
-            mappings.add(block.trim());
+    private static void write(FileChannel out, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
         }
-        return mappings;
     }
 
-    private static String processMapping(String mapping, String role) {
-        String[] lines = mapping.split("\\r?\\n");
-        StringBuilder result = new StringBuilder();
-        StringBuilder sourceBuilder = new StringBuilder();
-        boolean inSource = false;
+    private static void transferAll(Path file, FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
 
-        for (String line : lines) {
-            if (line.startsWith("source")) {
-                inSource = true;
-                sourceBuilder.append(line.substring(6).trim()); // Remove "source" keyword
-            } else if (inSource) {
-                sourceBuilder.append(" ").append(line.trim());
-            } else {
-                result.append(line).append("\n");
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while combining mappings");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            throw new IOException(cause);
         }
+    }
 
-        if (sourceBuilder.length() > 0) {
-            String originalSource = sourceBuilder.toString();
-            String modifiedSource = modifySourceQuery(originalSource, role);
-            result.append("source     ").append(modifiedSource);
+    /**
+     * Builds the guard admitting any of the given roles. Ontop evaluates every
+     * {@code ontop_contains_role} call to a constant for the request, so the disjunction acts as a
+     * single set-membership test.
+     */
+    static String roleCondition(Collection<String> roles) {
+        List<String> guards = new ArrayList<>();
+        for (String role : roles) {
+            guards.add("ontop_contains_role('" + role + "')");
         }
+        return guards.size() == 1 ? guards.get(0) : "(" + String.join(" OR ", guards) + ")";
+    }
 
-        return result.toString();
+    /**
+     * Places the role condition in the SQL source. Sources that could not be rewritten in place are
+     * wrapped in a guarded derived table and recorded in {@code problems}.
+     */
+    private static String modifySourceQuery(String mappingId, String source, String roleCondition, List<String> problems) {
+        SqlSourceRewriter.Rewrite rewrite = SqlSourceRewriter.addCondition(source, roleCondition);
+        if (rewrite.problem != null) {
+            problems.add(mappingId + ": " + rewrite.problem);
+        }
+        return rewrite.sql;
     }
 
-    private static String modifySourceQuery(String source, String role) {
-        String roleCondition = "ontop_contains_role('" + role + "')";
-        String trimmedSource = source.trim();
+    private static void reportProblems(List<String> problems) {
+        if (problems.isEmpty()) {
+            return;
+        }
+        System.out.println("⚠️ " + problems.size() + " source(s) could not be rewritten in place and were wrapped in a guarded subquery:");
+        for (String problem : problems) {
+            System.out.println("   - " + problem);
+        }
+    }
 
-        if (WHERE_PATTERN.matcher(trimmedSource).find()) {
-            // Add condition to existing WHERE clause
-            return trimmedSource + " AND " + roleCondition;
-        } else {
-            // Add new WHERE clause
-            return trimmedSource + " WHERE " + roleCondition;
+    private static class RoleSet {
+        ObdaReader.Mapping mapping;
+        final Set<String> roles = new LinkedHashSet<>();
+
+        void add(ObdaReader.Mapping mapping, String role) {
+            if (this.mapping == null) {
+                this.mapping = mapping;
+            }
+            roles.add(role);
+        }
+    }
+
+    private static class Segment {
+        final Path file;
+        final String prefixSection;
+        final int mappingCount;
+        final List<String> problems;
+
+        Segment(Path file, String prefixSection, int mappingCount, List<String> problems) {
+            this.file = file;
+            this.prefixSection = prefixSection;
+            this.mappingCount = mappingCount;
+            this.problems = problems;
         }
     }
 
@@ -0,0 +1,356 @@
+package se.umea.mapgen;
+
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.*;
+import org.semanticweb.owlapi.model.parameters.Imports;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Removes the mappings of an OBDA file that cannot contribute to queries over an ontology module.
+ * <p>
+ * A mapping is kept when at least one of its target triples uses a class or property from the
+ * module's signature. When Ontop is run with the full ontology instead of the module, every class
+ * and property from which the full ontology entails a triple over that signature is relevant too:
+ * sub-classes (looked up in a {@link ClassHierarchyIndex}), properties with a domain or range in it,
+ * sub-properties and the terms of {@code r some C} style sub-class expressions. Targets whose class or property is itself a template are always kept. Kept mappings
+ * that also produce triples outside the module are reported.
+ */
+class MappingPruner {
+
+    private static final Pattern PREFIX_LINE = Pattern.compile("^(\\S*):\\s+(\\S+)\\s*$");
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+    private static final String MAPPING_SEPARATOR = "\n\n";
+
+    static final class Result {
+        int kept;
+        final List<String> dropped = new ArrayList<>();
+        final Map<String, Set<String>> partlyOutside = new LinkedHashMap<>();
+    }
+
+    /**
+     * IRIs of the classes and properties the module declares or uses. When {@code fullOntology} is
+     * given, this is closed under everything in it that can entail a triple over those terms: the
+     * sub-classes of the classes, properties whose domain or range is one of the classes,
+     * sub-properties, equivalent and inverse properties, and the classes and properties of
+     * expressions such as {@code r some C} that are sub-classes of a class in the signature.
+     */
+    static Set<String> moduleSignature(OWLOntology module, OWLOntology fullOntology) {
+        Set<OWLEntity> entities = new HashSet<>(module.getSignature());
+        if (fullOntology != null) {
+            ClassHierarchyIndex hierarchy = new ClassHierarchyIndex(fullOntology);
+            Set<OWLAxiom> axioms = fullOntology.getAxioms(Imports.INCLUDED);
+            int size;
+            do {
+                size = entities.size();
+                hierarchy.addSubClasses(entities);
+                for (OWLAxiom axiom : axioms) {
+                    addEntailing(axiom, entities);
+                }
+            } while (entities.size() != size);
+        }
+        Set<String> iris = new HashSet<>();
+        for (OWLEntity entity : entities) {
+            iris.add(entity.getIRI().toString());
+        }
+        return iris;
+    }
+
+    /** Adds the terms through which {@code axiom} can entail a triple over {@code entities}. */
+    private static void addEntailing(OWLAxiom axiom, Set<OWLEntity> entities) {
+        if (axiom instanceof OWLObjectPropertyDomainAxiom) {
+            OWLObjectPropertyDomainAxiom domain = (OWLObjectPropertyDomainAxiom) axiom;
+            addIfImplies(domain.getProperty(), domain.getDomain(), entities);
+        } else if (axiom instanceof OWLDataPropertyDomainAxiom) {
+            OWLDataPropertyDomainAxiom domain = (OWLDataPropertyDomainAxiom) axiom;
+            addIfImplies(domain.getProperty(), domain.getDomain(), entities);
+        } else if (axiom instanceof OWLObjectPropertyRangeAxiom) {
+            OWLObjectPropertyRangeAxiom range = (OWLObjectPropertyRangeAxiom) axiom;
+            addIfImplies(range.getProperty(), range.getRange(), entities);
+        } else if (axiom instanceof OWLSubObjectPropertyOfAxiom) {
+            OWLSubObjectPropertyOfAxiom sub = (OWLSubObjectPropertyOfAxiom) axiom;
+            addIfUsed(sub.getSubProperty(), sub.getSuperProperty(), entities);
+        } else if (axiom instanceof OWLSubDataPropertyOfAxiom) {
+            OWLSubDataPropertyOfAxiom sub = (OWLSubDataPropertyOfAxiom) axiom;
+            addIfUsed(sub.getSubProperty(), sub.getSuperProperty(), entities);
+        } else if (axiom instanceof OWLSubPropertyChainOfAxiom) {
+            OWLSubPropertyChainOfAxiom chain = (OWLSubPropertyChainOfAxiom) axiom;
+            for (OWLObjectPropertyExpression link : chain.getPropertyChain()) {
+                addIfUsed(link, chain.getSuperProperty(), entities);
+            }
+        } else if (axiom instanceof OWLEquivalentObjectPropertiesAxiom
+                || axiom instanceof OWLEquivalentDataPropertiesAxiom
+                || axiom instanceof OWLInverseObjectPropertiesAxiom) {
+            if (!Collections.disjoint(axiom.getSignature(), entities)) {
+                entities.addAll(axiom.getSignature());
+            }
+        } else if (axiom instanceof OWLSubClassOfAxiom) {
+            OWLSubClassOfAxiom sub = (OWLSubClassOfAxiom) axiom;
+            if (sub.getSubClass().isAnonymous()) {
+                addIfImplies(sub.getSubClass(), sub.getSuperClass(), entities);
+            }
+        } else if (axiom instanceof OWLEquivalentClassesAxiom) {
+            for (OWLSubClassOfAxiom sub : ((OWLEquivalentClassesAxiom) axiom).asOWLSubClassOfAxioms()) {
+                addEntailing(sub, entities);
+            }
+        }
+    }
+
+    /** Adds the signature of {@code source} when every instance of it is a named class in {@code entities}. */
+    private static void addIfImplies(OWLObject source, OWLClassExpression implied, Set<OWLEntity> entities) {
+        for (OWLClassExpression conjunct : implied.asConjunctSet()) {
+            if (!conjunct.isAnonymous() && !conjunct.isOWLThing() && entities.contains(conjunct.asOWLClass())) {
+                addTerms(source, entities);
+                return;
+            }
+        }
+    }
+
+    private static void addIfUsed(OWLObject source, OWLPropertyExpression implied, Set<OWLEntity> entities) {
+        if (!Collections.disjoint(implied.getSignature(), entities)) {
+            addTerms(source, entities);
+        }
+    }
+
+    private static void addTerms(OWLObject source, Set<OWLEntity> entities) {
+        for (OWLEntity entity : source.getSignature()) {
+            if (!entity.isBuiltIn()) {
+                entities.add(entity);
+            }
+        }
+    }
+
+    /** Parses the prefix section returned by {@link ObdaReader#readPrefixSection()}. */
+    static Map<String, String> parsePrefixes(String prefixSection) {
+        Map<String, String> prefixes = new HashMap<>();
+        for (String line : prefixSection.split("\n")) {
+            Matcher matcher = PREFIX_LINE.matcher(line.trim());
+            if (matcher.matches()) {
+                prefixes.put(matcher.group(1), matcher.group(2));
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Returns the classes (objects of {@code a}/{@code rdf:type}) and properties used by a mapping
+     * target, as full IRIs. A class or property that is itself a template is returned unexpanded.
+     */
+    static Set<String> targetVocabulary(String target, Map<String, String> prefixes) {
+        Set<String> vocabulary = new LinkedHashSet<>();
+        List<String> tokens = tokenize(target);
+        // 0: expecting a subject, 1: a predicate, 2: an object
+        int state = 0;
+        String predicate = null;
+        for (String token : tokens) {
+            switch (token) {
+                case ".":
+                    state = 0;
+                    continue;
+                case ";":
+                    state = 1;
+                    continue;
+                case ",":
+                    state = 2;
+                    continue;
+                default:
+                    break;
+            }
+            if (state == 0) {
+                state = 1;
+            } else if (state == 1) {
+                predicate = token.equals("a") ? RDF_TYPE : expand(token, prefixes);
+                if (!predicate.equals(RDF_TYPE)) {
+                    vocabulary.add(predicate);
+                }
+                state = 2;
+            } else if (RDF_TYPE.equals(predicate)) {
+                vocabulary.add(expand(token, prefixes));
+            }
+        }
+        return vocabulary;
+    }
+
+    private static String expand(String term, Map<String, String> prefixes) {
+        if (term.startsWith("<") && term.endsWith(">")) {
+            return term.substring(1, term.length() - 1);
+        }
+        int colon = term.indexOf(':');
+        if (colon >= 0 && prefixes.containsKey(term.substring(0, colon))) {
+            return prefixes.get(term.substring(0, colon)) + term.substring(colon + 1);
+        }
+        return term;
+    }
+
+    /**
+     * Splits a target into terms and the separators {@code . ; ,}, keeping IRIs, literals and
+     * templates in one piece.
+     */
+    private static List<String> tokenize(String target) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        char quote = 0;
+        int depth = 0;
+        for (int i = 0; i < target.length(); i++) {
+            char c = target.charAt(i);
+            if (quote != 0) {
+                token.append(c);
+                if (c == '\\' && i + 1 < target.length()) {
+                    token.append(target.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                token.append(c);
+            } else if (c == '<' || c == '{') {
+                depth++;
+                token.append(c);
+            } else if (c == '>' || c == '}') {
+                depth = Math.max(0, depth - 1);
+                token.append(c);
+            } else if (depth == 0 && Character.isWhitespace(c)) {
+                addToken(tokens, token);
+            } else {
+                token.append(c);
+            }
+        }
+        addToken(tokens, token);
+        return tokens;
+    }
+
+    private static void addToken(List<String> tokens, StringBuilder token) {
+        if (token.length() == 0) {
+            return;
+        }
+        String text = token.toString();
+        token.setLength(0);
+        char last = text.charAt(text.length() - 1);
+        if (text.length() > 1 && (last == ';' || last == ',')) {
+            tokens.add(text.substring(0, text.length() - 1));
+            tokens.add(String.valueOf(last));
+        } else {
+            tokens.add(text);
+        }
+    }
+
+    /**
+     * Copies the mappings of {@code input} that can contribute to queries over {@code signature} to
+     * {@code output}, or only reports them when {@code output} is {@code null}.
+     */
+    static Result prune(Path input, Path output, Set<String> signature) throws IOException {
+        Result result = new Result();
+        try (ObdaReader reader = new ObdaReader(input);
+             Writer writer = output == null ? Writer.nullWriter() : Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            String prefixSection = reader.readPrefixSection();
+            Map<String, String> prefixes = parsePrefixes(prefixSection);
+            if (!prefixSection.isEmpty()) {
+                writer.write(prefixSection + "\n\n");
+            }
+            writer.write("[MappingDeclaration] @collection [[\n");
+
+            ObdaReader.Mapping mapping;
+            while ((mapping = reader.next()) != null) {
+                Set<String> outside = new LinkedHashSet<>();
+                boolean relevant = false;
+                for (String iri : targetVocabulary(mapping.target(), prefixes)) {
+                    if (signature.contains(iri) || iri.contains("{")) {
+                        relevant = true;
+                    } else {
+                        outside.add(iri);
+                    }
+                }
+                if (!relevant) {
+                    result.dropped.add(mapping.id());
+                    continue;
+                }
+                if (!outside.isEmpty()) {
+                    result.partlyOutside.put(mapping.id(), outside);
+                }
+                if (result.kept > 0) {
+                    writer.write(MAPPING_SEPARATOR);
+                }
+                for (String line : mapping.headerLines) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                if (mapping.source != null && !mapping.source.isEmpty()) {
+                    writer.write("source     ");
+                    writer.write(mapping.source);
+                }
+                result.kept++;
+            }
+            writer.write("\n]]");
+        }
+        return result;
+    }
+
+    private static void report(Path input, Result result) {
+        int total = result.kept + result.dropped.size();
+        System.out.println(input + ": kept " + result.kept + " of " + total + " mappings, dropped " + result.dropped.size());
+        for (String id : result.dropped) {
+            System.out.println("  dropped  " + id);
+        }
+        for (Map.Entry<String, Set<String>> entry : result.partlyOutside.entrySet()) {
+            System.out.println("  ⚠️ " + entry.getKey() + " also maps " + entry.getValue().size()
+                    + " term(s) outside the module: " + entry.getValue());
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: MappingPruner --module <module.owl> [--ontology <full ontology>] [--report-only]");
+        System.out.println("         <input.obda> [<input.obda> ...]");
+        System.out.println("Pruned mappings are written next to each input as <name>-pruned.obda.");
+        System.out.println("Pass --ontology when Ontop runs with the full ontology, so terms that entail module terms are kept.");
+    }
+
+    public static void main(String[] args) throws Exception {
+        String modulePath = null;
+        String ontologyPath = null;
+        boolean reportOnly = false;
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--module") && i + 1 < args.length) {
+                modulePath = args[++i];
+            } else if (args[i].equals("--ontology") && i + 1 < args.length) {
+                ontologyPath = args[++i];
+            } else if (args[i].equals("--report-only")) {
+                reportOnly = true;
+            } else {
+                inputs.add(Paths.get(args[i]));
+            }
+        }
+        if (modulePath == null || inputs.isEmpty()) {
+            printUsage();
+            return;
+        }
+
+        OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+        OWLOntology module = manager.loadOntologyFromOntologyDocument(Paths.get(modulePath).toFile());
+        OWLOntology fullOntology = null;
+        if (ontologyPath != null) {
+            OWLOntologyManager fullManager = OWLManager.createOWLOntologyManager();
+            fullOntology = fullManager.loadOntologyFromOntologyDocument(Paths.get(ontologyPath).toFile());
+        }
+        Set<String> signature = moduleSignature(module, fullOntology);
+        System.out.println("Module signature: " + signature.size() + " terms");
+
+        for (Path input : inputs) {
+            String name = input.getFileName().toString().replaceFirst("\\.obda$", "");
+            Path output = reportOnly ? null : input.resolveSibling(name + "-pruned.obda");
+            Result result = prune(input, output, signature);
+            report(input, result);
+            if (output != null) {
+                System.out.println("✅ Pruned mappings written to " + output);
+            }
+        }
+    }
+}
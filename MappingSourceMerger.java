@@ -0,0 +1,193 @@
+package se.umea.mapgen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Merges the mappings of an OBDA file that run the same SQL source into one mapping per source.
+ * <p>
+ * Ontop unfolds every mapping into its own subquery, so mappings that only differ in their target
+ * (e.g. {@code Observation} and {@code Observation.subject} over the same {@code measurement} scan)
+ * turn into redundant scans and self-joins. Sources are compared after normalisation: whitespace is
+ * collapsed, unquoted keywords and identifiers are lower-cased and a trailing semicolon is dropped,
+ * while quoted identifiers and string literals are kept as they are. The merged mapping keeps the
+ * id of the first mapping of its group and carries the target triples of all of them, in file order.
+ * Mappings with a distinct source are copied unchanged.
+ */
+class MappingSourceMerger {
+
+    private static final String MAPPING_SEPARATOR = "\n\n";
+    private static final String PUNCTUATION = "(),;=<>+-*/|.";
+
+    static final class Result {
+        int mappings;
+        int written;
+        final Map<String, List<String>> mergedIds = new LinkedHashMap<>();
+
+        /** Number of source queries the merge removed from the file. */
+        int removedSources() {
+            return mappings - written;
+        }
+    }
+
+    private static final class Group {
+        final ObdaReader.Mapping first;
+        final List<String> ids = new ArrayList<>();
+        final Set<String> triples = new LinkedHashSet<>();
+
+        Group(ObdaReader.Mapping first) {
+            this.first = first;
+        }
+    }
+
+    /** Returns the form under which two SQL sources are considered the same query. */
+    static String normalizeSource(String source) {
+        StringBuilder normalized = new StringBuilder(source.length());
+        boolean pendingSpace = false;
+        char quote = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (quote != 0) {
+                normalized.append(c);
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (pendingSpace && PUNCTUATION.indexOf(c) < 0
+                    && PUNCTUATION.indexOf(normalized.charAt(normalized.length() - 1)) < 0) {
+                normalized.append(' ');
+            }
+            pendingSpace = false;
+            if (c == '\'' || c == '"') {
+                quote = c;
+                normalized.append(c);
+            } else {
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        while (normalized.length() > 0 && normalized.charAt(normalized.length() - 1) == ';') {
+            normalized.setLength(normalized.length() - 1);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Returns the target of a mapping as one line of triples, each terminated by {@code .}. Targets
+     * spread over several lines are joined.
+     */
+    static String targetTriples(ObdaReader.Mapping mapping) {
+        StringBuilder target = new StringBuilder();
+        for (String line : mapping.headerLines) {
+            if (line.startsWith("mappingId")) {
+                continue;
+            }
+            String text = line.startsWith("target") ? line.substring("target".length()).trim() : line.trim();
+            if (target.length() > 0) {
+                target.append(' ');
+            }
+            target.append(text);
+        }
+        String triples = target.toString().trim();
+        return triples.endsWith(".") ? triples : triples + " .";
+    }
+
+    /** Writes the mappings of {@code input} to {@code output} with mappings of equal sources merged. */
+    static Result merge(Path input, Path output) throws IOException {
+        Result result = new Result();
+        Map<String, Group> groups = new LinkedHashMap<>();
+        String prefixSection;
+        try (ObdaReader reader = new ObdaReader(input)) {
+            prefixSection = reader.readPrefixSection();
+            ObdaReader.Mapping mapping;
+            while ((mapping = reader.next()) != null) {
+                // Mappings without a source cannot be merged and keep a key of their own
+                String key = mapping.source == null || mapping.source.isEmpty()
+                        ? "#" + result.mappings : normalizeSource(mapping.source);
+                Group group = groups.get(key);
+                if (group == null) {
+                    group = new Group(mapping);
+                    groups.put(key, group);
+                }
+                group.ids.add(mapping.id());
+                group.triples.add(targetTriples(mapping));
+                result.mappings++;
+            }
+        }
+
+        try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            if (!prefixSection.isEmpty()) {
+                writer.write(prefixSection + "\n\n");
+            }
+            writer.write("[MappingDeclaration] @collection [[\n");
+            for (Group group : groups.values()) {
+                if (result.written > 0) {
+                    writer.write(MAPPING_SEPARATOR);
+                }
+                if (group.ids.size() == 1) {
+                    for (String line : group.first.headerLines) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                } else {
+                    writer.write("mappingId  " + group.first.id() + "\n");
+                    writer.write("target     " + String.join(" ", group.triples) + "\n");
+                    result.mergedIds.put(group.first.id(), group.ids);
+                }
+                if (group.first.source != null && !group.first.source.isEmpty()) {
+                    writer.write("source     ");
+                    writer.write(group.first.source);
+                }
+                result.written++;
+            }
+            writer.write("\n]]");
+        }
+        return result;
+    }
+
+    /** Merges a mapping file in place. */
+    static Result mergeInPlace(Path file) throws IOException {
+        Path merged = Files.createTempFile(file.toAbsolutePath().getParent(), "merged", ".obda");
+        try {
+            Result result = merge(file, merged);
+            Files.move(merged, file, StandardCopyOption.REPLACE_EXISTING);
+            return result;
+        } finally {
+            Files.deleteIfExists(merged);
+        }
+    }
+
+    static void report(Path file, Result result) {
+        System.out.println(file + ": " + result.mappings + " mappings -> " + result.written
+                + ", removed " + result.removedSources() + " duplicate source queries");
+        for (Map.Entry<String, List<String>> entry : result.mergedIds.entrySet()) {
+            System.out.println("  merged " + entry.getValue().size() + " mappings into " + entry.getKey());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: MappingSourceMerger <input.obda> [<input.obda> ...]");
+            System.out.println("Merged mappings are written next to each input as <name>-merged.obda.");
+            return;
+        }
+        for (String arg : args) {
+            Path input = Paths.get(arg);
+            String name = input.getFileName().toString().replaceFirst("\\.obda$", "");
+            Path output = input.resolveSibling(name + "-merged.obda");
+            Result result = merge(input, output);
+            report(input, result);
+            System.out.println("✅ Merged mappings written to " + output);
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package se.umea.mapgen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Moves the denial policies of every role out of the query path and into materialised views.
+ * <p>
+ * Compilation reads the same {@code path=role} configuration as {@link MappingCombinerRBAC}. Every
+ * distinct policy-embedded SQL source of a role becomes a materialised view in the
+ * {@code rbac_views} schema holding exactly the rows and columns that role may see, and the combined
+ * mapping file reads {@code SELECT * FROM rbac_views.<view>} behind the usual
+ * {@code ontop_contains_role} guard instead of evaluating the policy on every query. The view keeps
+ * the column names of the source, so the mapping targets are unchanged; a source with two output
+ * columns of the same name cannot be materialised and fails when the DDL is run.
+ * <p>
+ * PostgreSQL refreshes a materialised view by recomputing it, so the generated DDL also installs a
+ * statement-level trigger on every base table that counts its changes in
+ * {@code rbac_views.table_changes}, and records which tables each view reads in
+ * {@code rbac_views.view_dependencies}. The refresh driver ({@code --refresh}) then only refreshes the
+ * views whose base tables changed since their last refresh. A view gets a unique index when its rows
+ * can be told apart: on the OMOP key column {@code <table>_id} of the table it scans, or on all its
+ * columns when the source is {@code SELECT DISTINCT}. With {@code --concurrently} those views are
+ * refreshed concurrently and the others in the usual way. With {@code --immv} the views are
+ * created as pg_ivm incrementally maintained views instead, which are kept current row by row inside
+ * the writing transaction and need no refresh, but only support a subset of SQL.
+ */
+class MaterializedViewCompiler {
+
+    static final String SCHEMA = "rbac_views";
+    /** Dependency of a view whose source could not be analysed; such views are refreshed on every run. */
+    static final String ANY_TABLE = "*";
+    private static final String MAPPING_SEPARATOR = "\n\n";
+
+    static final class View {
+        final String name;
+        final String role;
+        final String source;
+        /** Tables the source reads, or {@code null} if they could not be determined. */
+        final Set<String> baseTables;
+        /** Column that is unique in the view, or {@code null} if none is known. */
+        final String keyColumn;
+        final boolean distinct;
+
+        View(String name, String role, String source) {
+            this.name = name;
+            this.role = role;
+            this.source = source;
+            this.baseTables = SqlSourceRewriter.referencedTables(source);
+            this.keyColumn = SqlSourceRewriter.keyColumn(source);
+            this.distinct = SqlSourceRewriter.selectsDistinct(source);
+        }
+
+        boolean hasUniqueIndex() {
+            return keyColumn != null || distinct;
+        }
+    }
+
+    static final class Compilation {
+        final List<View> views = new ArrayList<>();
+        int mappings;
+        final List<String> skipped = new ArrayList<>();
+    }
+
+    /**
+     * Writes the rewritten mapping file to {@code mappingOutput} and returns the views it reads from.
+     * Mappings whose source already calls {@code ontop_contains_role} cannot be materialised and are
+     * copied unchanged.
+     */
+    static Compilation compile(List<MappingCombinerRBAC.MappingFile> mappingFiles, Path mappingOutput) throws IOException {
+        Compilation compilation = new Compilation();
+        Map<String, View> viewsBySource = new HashMap<>();
+        Map<String, Integer> viewsPerRole = new HashMap<>();
+        try (Writer writer = Files.newBufferedWriter(mappingOutput, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < mappingFiles.size(); i++) {
+                MappingCombinerRBAC.MappingFile mf = mappingFiles.get(i);
+                String roleCondition = MappingCombinerRBAC.roleCondition(Collections.singleton(mf.role));
+                try (ObdaReader reader = new ObdaReader(Paths.get(mf.filePath))) {
+                    String prefixSection = reader.readPrefixSection();
+                    if (i == 0) {
+                        if (!prefixSection.isEmpty()) {
+                            writer.write(prefixSection + "\n\n");
+                        }
+                        writer.write("[MappingDeclaration] @collection [[\n");
+                    }
+                    ObdaReader.Mapping mapping;
+                    while ((mapping = reader.next()) != null) {
+                        if (compilation.mappings > 0) {
+                            writer.write(MAPPING_SEPARATOR);
+                        }
+                        for (String line : mapping.headerLines) {
+                            writer.write(line);
+                            writer.write('\n');
+                        }
+                        compilation.mappings++;
+                        if (mapping.source == null || mapping.source.isEmpty()) {
+                            continue;
+                        }
+                        writer.write("source     ");
+                        if (mapping.source.contains("ontop_contains_role")) {
+                            compilation.skipped.add(mf.role + " " + mapping.id());
+                            writer.write(mapping.source);
+                            continue;
+                        }
+                        String key = mf.role + '\n' + mapping.source.trim().replaceAll("\\s+", " ");
+                        View view = viewsBySource.get(key);
+                        if (view == null) {
+                            view = new View(viewName(mf.role, viewsPerRole.merge(mf.role, 1, Integer::sum)), mf.role, mapping.source.trim());
+                            viewsBySource.put(key, view);
+                            compilation.views.add(view);
+                        }
+                        writer.write("SELECT * FROM " + SCHEMA + "." + view.name + " WHERE " + roleCondition);
+                    }
+                }
+            }
+            if (mappingFiles.isEmpty()) {
+                writer.write("[MappingDeclaration] @collection [[\n");
+            }
+            writer.write("\n]]");
+        }
+        return compilation;
+    }
+
+    private static String viewName(String role, int number) {
+        return String.format("%s_%03d", role.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_]", "_"), number);
+    }
+
+    /**
+     * Writes the script that (re)creates the {@code rbac_views} schema with the views, the change
+     * counters and the triggers on their base tables. Running it again rebuilds everything from
+     * scratch.
+     */
+    static void writeDdl(Compilation compilation, Path ddlOutput, boolean immv) throws IOException {
+        Set<String> baseTables = new TreeSet<>();
+        for (View view : compilation.views) {
+            if (view.baseTables != null) {
+                baseTables.addAll(view.baseTables);
+            }
+        }
+        try (Writer writer = Files.newBufferedWriter(ddlOutput, StandardCharsets.UTF_8)) {
+            writer.write("-- Generated by MaterializedViewCompiler: " + compilation.views.size() + " view(s) over "
+                    + baseTables.size() + " base table(s)\n");
+            writer.write("BEGIN;\n\n");
+            if (immv) {
+                writer.write("CREATE EXTENSION IF NOT EXISTS pg_ivm;\n");
+            }
+            writer.write("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE;\n");
+            writer.write("CREATE SCHEMA " + SCHEMA + ";\n\n");
+
+            if (!immv) {
+                writer.write("CREATE TABLE " + SCHEMA + ".table_changes (\n"
+                        + "    table_name TEXT PRIMARY KEY,\n"
+                        + "    change_count BIGINT NOT NULL DEFAULT 0\n"
+                        + ");\n\n");
+                writer.write("CREATE TABLE " + SCHEMA + ".view_dependencies (\n"
+                        + "    view_name TEXT NOT NULL,\n"
+                        + "    base_table TEXT NOT NULL,\n"
+                        + "    refreshed_change_count BIGINT NOT NULL DEFAULT 0,\n"
+                        + "    PRIMARY KEY (view_name, base_table)\n"
+                        + ");\n\n");
+                // One row update per statement, not per row, keeps bulk loads cheap
+                writer.write("CREATE FUNCTION " + SCHEMA + ".record_table_change() RETURNS trigger LANGUAGE plpgsql AS $$\n"
+                        + "BEGIN\n"
+                        + "    UPDATE " + SCHEMA + ".table_changes SET change_count = change_count + 1 WHERE table_name = TG_TABLE_NAME;\n"
+                        + "    RETURN NULL;\n"
+                        + "END\n"
+                        + "$$;\n\n");
+                for (String table : baseTables) {
+                    writer.write("INSERT INTO " + SCHEMA + ".table_changes (table_name) VALUES (" + literal(table) + ");\n");
+                    writer.write("DROP TRIGGER IF EXISTS rbac_views_changes ON " + identifier(table) + ";\n");
+                    writer.write("CREATE TRIGGER rbac_views_changes AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON "
+                            + identifier(table) + "\n    FOR EACH STATEMENT EXECUTE FUNCTION " + SCHEMA + ".record_table_change();\n");
+                }
+                writer.write("\n");
+            }
+
+            String role = null;
+            for (View view : compilation.views) {
+                if (!view.role.equals(role)) {
+                    role = view.role;
+                    writer.write("-- Role: " + role + "\n\n");
+                }
+                if (immv) {
+                    writer.write("SELECT create_immv(" + literal(SCHEMA + "." + view.name) + ", $view$\n"
+                            + view.source + "\n$view$);\n\n");
+                    continue;
+                }
+                writer.write("CREATE MATERIALIZED VIEW " + SCHEMA + "." + view.name + " AS\n" + view.source + "\nWITH DATA;\n");
+                writeUniqueIndex(writer, view);
+                Set<String> dependencies = view.baseTables == null || view.baseTables.isEmpty()
+                        ? Collections.singleton(ANY_TABLE) : view.baseTables;
+                List<String> rows = new ArrayList<>();
+                for (String table : dependencies) {
+                    rows.add("(" + literal(view.name) + ", " + literal(table) + ")");
+                }
+                writer.write("INSERT INTO " + SCHEMA + ".view_dependencies (view_name, base_table) VALUES "
+                        + String.join(", ", rows) + ";\n\n");
+            }
+            writer.write("COMMIT;\n");
+        }
+    }
+
+    /**
+     * Writes the unique index that lets the view be refreshed concurrently, if its rows can be told
+     * apart. The columns of a DISTINCT view are taken from the catalog, as its select list may hold
+     * unnamed expressions.
+     */
+    private static void writeUniqueIndex(Writer writer, View view) throws IOException {
+        String qualifiedName = SCHEMA + "." + view.name;
+        if (view.keyColumn != null) {
+            writer.write("CREATE UNIQUE INDEX ON " + qualifiedName + " (" + identifier(view.keyColumn) + ");\n");
+        } else if (view.distinct) {
+            writer.write("DO $$ BEGIN\n"
+                    + "    EXECUTE (SELECT format('CREATE UNIQUE INDEX ON " + qualifiedName + " (%s)',\n"
+                    + "                           string_agg(quote_ident(attname), ', ' ORDER BY attnum))\n"
+                    + "             FROM pg_attribute WHERE attrelid = " + literal(qualifiedName) + "::regclass\n"
+                    + "             AND attnum > 0 AND NOT attisdropped);\n"
+                    + "END $$;\n");
+        } else {
+            writer.write("-- No unique key is known for " + view.name + ", so it is never refreshed concurrently\n");
+        }
+    }
+
+    private static String literal(String text) {
+        return "'" + text.replace("'", "''") + "'";
+    }
+
+    private static String identifier(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Refresh driver
+
+    /**
+     * Refreshes the views whose base tables changed since their last refresh, each in its own
+     * transaction, and returns how many were refreshed. The change counts are read before the
+     * refresh, so changes committed while it runs are picked up by the next call. With
+     * {@code concurrently}, only views with a unique index are refreshed concurrently, as PostgreSQL
+     * rejects the others.
+     */
+    static int refresh(Connection connection, boolean concurrently) throws SQLException {
+        Set<String> uniquelyIndexed = concurrently ? uniquelyIndexedViews(connection) : Collections.emptySet();
+        Map<String, Map<String, Long>> stale = new TreeMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(
+                     "SELECT d.view_name, d.base_table, COALESCE(c.change_count, 0)"
+                             + " FROM " + SCHEMA + ".view_dependencies d"
+                             + " LEFT JOIN " + SCHEMA + ".table_changes c ON c.table_name = d.base_table"
+                             + " WHERE d.base_table = '" + ANY_TABLE + "' OR c.change_count > d.refreshed_change_count")) {
+            while (rs.next()) {
+                stale.computeIfAbsent(rs.getString(1), v -> new HashMap<>()).put(rs.getString(2), rs.getLong(3));
+            }
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement record = connection.prepareStatement(
+                "UPDATE " + SCHEMA + ".view_dependencies SET refreshed_change_count = ? WHERE view_name = ? AND base_table = ?")) {
+            for (Map.Entry<String, Map<String, Long>> view : stale.entrySet()) {
+                long start = System.nanoTime();
+                boolean concurrent = uniquelyIndexed.contains(view.getKey());
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("REFRESH MATERIALIZED VIEW " + (concurrent ? "CONCURRENTLY " : "")
+                            + SCHEMA + "." + identifier(view.getKey()));
+                }
+                for (Map.Entry<String, Long> dependency : view.getValue().entrySet()) {
+                    record.setLong(1, dependency.getValue());
+                    record.setString(2, view.getKey());
+                    record.setString(3, dependency.getKey());
+                    record.addBatch();
+                }
+                record.executeBatch();
+                connection.commit();
+                System.out.printf("Refreshed %s.%s%s in %.3f seconds (changed: %s)%n", SCHEMA, view.getKey(),
+                        concurrently && !concurrent ? " without CONCURRENTLY (no unique index)" : "",
+                        (System.nanoTime() - start) / 1e9, view.getValue().keySet());
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return stale.size();
+    }
+
+    /** Returns the views of the schema that have a unique index usable by a concurrent refresh. */
+    private static Set<String> uniquelyIndexedViews(Connection connection) throws SQLException {
+        Set<String> views = new HashSet<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(
+                     "SELECT DISTINCT c.relname FROM pg_index i"
+                             + " JOIN pg_class c ON c.oid = i.indrelid"
+                             + " JOIN pg_namespace n ON n.oid = c.relnamespace"
+                             + " WHERE n.nspname = '" + SCHEMA + "' AND c.relkind = 'm'"
+                             + " AND i.indisunique AND i.indpred IS NULL AND i.indexprs IS NULL")) {
+            while (rs.next()) {
+                views.add(rs.getString(1));
+            }
+        }
+        return views;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: MaterializedViewCompiler --config <mapping configuration> [--ddl <file.sql>] [--mappings <file.obda>] [--immv]");
+        System.out.println("       MaterializedViewCompiler --refresh --jdbc-url <url> [--jdbc-user <name>] [--jdbc-password <password>]");
+        System.out.println("         [--concurrently] [--watch <seconds>]");
+        System.out.println("The configuration has the same path=role lines as for MappingCombinerRBAC.");
+        System.out.println("--concurrently keeps the views with a unique index readable during a refresh; the others are refreshed as usual.");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        Set<String> flags = new HashSet<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--refresh") || args[i].equals("--immv") || args[i].equals("--concurrently")) {
+                flags.add(args[i]);
+            } else if (i + 1 < args.length) {
+                options.put(args[i], args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+
+        if (flags.contains("--refresh")) {
+            if (!options.containsKey("--jdbc-url")) {
+                printUsage();
+                return;
+            }
+            long watchMillis = (long) (Double.parseDouble(options.getOrDefault("--watch", "0")) * 1000);
+            try (Connection connection = DriverManager.getConnection(options.get("--jdbc-url"),
+                    OmopDataGenerator.connectionProperties(options.get("--jdbc-user"), options.get("--jdbc-password")))) {
+                do {
+                    int refreshed = refresh(connection, flags.contains("--concurrently"));
+                    System.out.println(refreshed == 0 ? "All views are current." : "✅ Refreshed " + refreshed + " view(s).");
+                    if (watchMillis > 0) {
+                        Thread.sleep(watchMillis);
+                    }
+                } while (watchMillis > 0);
+            }
+            return;
+        }
+
+        if (!options.containsKey("--config")) {
+            printUsage();
+            return;
+        }
+        List<MappingCombinerRBAC.MappingFile> mappingFiles = MappingCombinerRBAC.readConfigurationFile(options.get("--config"));
+        if (mappingFiles.isEmpty()) {
+            System.out.println("No valid mapping files found in configuration.");
+            return;
+        }
+        Path mappingOutput = Paths.get(options.getOrDefault("--mappings", "RBACViews.obda"));
+        Path ddlOutput = Paths.get(options.getOrDefault("--ddl", "rbac_views.sql"));
+
+        Compilation compilation = compile(mappingFiles, mappingOutput);
+        writeDdl(compilation, ddlOutput, flags.contains("--immv"));
+
+        System.out.println(compilation.mappings + " mappings read from " + mappingFiles.size() + " file(s), "
+                + compilation.views.size() + " materialised view(s)");
+        int unanalysed = 0;
+        int uniquelyIndexed = 0;
+        for (View view : compilation.views) {
+            if (view.baseTables == null || view.baseTables.isEmpty()) {
+                unanalysed++;
+            }
+            if (view.hasUniqueIndex()) {
+                uniquelyIndexed++;
+            }
+        }
+        if (!flags.contains("--immv")) {
+            System.out.println(uniquelyIndexed + " of " + compilation.views.size()
+                    + " view(s) have a unique index and can be refreshed with --concurrently");
+        }
+        if (unanalysed > 0 && !flags.contains("--immv")) {
+            System.out.println("⚠️ The base tables of " + unanalysed + " view(s) could not be determined; they are refreshed on every run.");
+        }
+        if (!compilation.skipped.isEmpty()) {
+            System.out.println("⚠️ " + compilation.skipped.size() + " source(s) already call ontop_contains_role and were copied unchanged:");
+            for (String mapping : compilation.skipped) {
+                System.out.println("   - " + mapping);
+            }
+        }
+        System.out.println("✅ View DDL written to " + ddlOutput);
+        System.out.println("✅ Mappings over the views written to " + mappingOutput);
+    }
+}
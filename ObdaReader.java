@@ -0,0 +1,159 @@
+package se.umea.mapgen;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Single-pass reader for Ontop native mapping files (.obda).
+ * <p>
+ * The file is read line by line: {@link #readPrefixSection()} consumes everything up to the
+ * {@code [MappingDeclaration]} header and {@link #next()} then returns one mapping at a time, so only
+ * the mapping being read is held in memory.
+ */
+class ObdaReader implements Closeable {
+
+    private static final String PREFIX_DECLARATION = "[PrefixDeclaration]";
+    private static final String MAPPING_DECLARATION = "[MappingDeclaration]";
+
+    private final BufferedReader reader;
+    private String pendingLine;
+    private boolean inCollection;
+    private boolean finished;
+
+    ObdaReader(Path file) throws IOException {
+        this.reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One {@code mappingId}/{@code target}/{@code source} entry. The header lines (mapping id and target)
+     * are kept verbatim; a multi-line source is joined into a single line.
+     */
+    static final class Mapping {
+        final List<String> headerLines;
+        final String source;
+
+        Mapping(List<String> headerLines, String source) {
+            this.headerLines = headerLines;
+            this.source = source;
+        }
+
+        String id() {
+            return keywordValue("mappingId");
+        }
+
+        String target() {
+            return keywordValue("target");
+        }
+
+        private String keywordValue(String keyword) {
+            for (String line : headerLines) {
+                if (line.startsWith(keyword)) {
+                    return line.substring(keyword.length()).trim();
+                }
+            }
+            return "";
+        }
+    }
+
+    /**
+     * Returns the prefix section, from {@code [PrefixDeclaration]} up to the mapping declaration, or an
+     * empty string if the file has none. Must be called before the first {@link #next()}.
+     */
+    String readPrefixSection() throws IOException {
+        StringBuilder prefixes = new StringBuilder();
+        boolean inPrefixes = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(MAPPING_DECLARATION)) {
+                inCollection = line.contains("[[");
+                break;
+            }
+            if (line.startsWith(PREFIX_DECLARATION)) {
+                inPrefixes = true;
+            }
+            if (inPrefixes) {
+                prefixes.append(line).append('\n');
+            }
+        }
+        if (line == null) {
+            finished = true;
+        }
+        return prefixes.toString().trim();
+    }
+
+    /**
+     * Returns the next mapping, or {@code null} once the mapping collection has been fully read.
+     */
+    Mapping next() throws IOException {
+        if (!inCollection && !finished) {
+            skipToCollection();
+        }
+        List<String> headerLines = new ArrayList<>();
+        StringBuilder source = null;
+
+        String line;
+        while (!finished && (line = nextLine()) != null) {
+            String trimmed = line.trim();
+            if (trimmed.equals("]]")) {
+                finished = true;
+                break;
+            }
+            if (line.startsWith("mappingId") && !headerLines.isEmpty()) {
+                pendingLine = line;
+                break;
+            }
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (source != null) {
+                source.append(' ').append(trimmed);
+            } else if (line.startsWith("source")) {
+                source = new StringBuilder(line.substring("source".length()).trim());
+            } else {
+                headerLines.add(line);
+            }
+        }
+
+        if (headerLines.isEmpty() && source == null) {
+            finished = true;
+            return null;
+        }
+        return new Mapping(Collections.unmodifiableList(headerLines), source == null ? null : source.toString());
+    }
+
+    private void skipToCollection() throws IOException {
+        String line;
+        while ((line = nextLine()) != null) {
+            if (line.contains("@collection [[")) {
+                inCollection = true;
+                return;
+            }
+        }
+        finished = true;
+    }
+
+    private String nextLine() throws IOException {
+        if (pendingLine != null) {
+            String line = pendingLine;
+            pendingLine = null;
+            return line;
+        }
+        String line = reader.readLine();
+        if (line == null) {
+            finished = true;
+        }
+        return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,520 @@
+package se.umea.mapgen;
+
+import java.sql.*;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills a database with synthetic, referentially consistent OMOP CDM data for the tables read by
+ * {@code fhir.obda}, {@code Mapping1.obda} and {@code RBACMapping.obda}.
+ * <p>
+ * The size is set by the number of patients; providers, care sites and locations grow with it. The
+ * output only depends on the seed, also when patients are generated in parallel: every chunk of
+ * patients has its own random generator, and event ids are derived from the person id. The
+ * concepts and value distributions are chosen so that each query in {@code Sparql queries.md}
+ * returns results: male inpatients with stays of five days or more, Alzheimer's diagnoses,
+ * deliveries, trazodone prescriptions and HbA1c values of 10% and above.
+ * <p>
+ * The mappings use PostgreSQL functions, so the data is meant for a local PostgreSQL database, but
+ * only standard SQL is used to load it.
+ */
+class OmopDataGenerator {
+
+    private static final int PATIENTS_PER_CHUNK = 10_000;
+    /** Upper bound on the events of one kind per patient, so that event ids can be derived from the person id. */
+    private static final int MAX_EVENTS_PER_PATIENT = 8;
+    private static final LocalDate FIRST_EVENT_DATE = LocalDate.of(2010, 1, 1);
+    private static final int EVENT_DATE_RANGE_DAYS = 10 * 365;
+
+    static final class Concept {
+        final long id;
+        final String name;
+        final String domain;
+        final String vocabulary;
+        final String code;
+
+        Concept(long id, String name, String domain, String vocabulary, String code) {
+            this.id = id;
+            this.name = name;
+            this.domain = domain;
+            this.vocabulary = vocabulary;
+            this.code = code;
+        }
+    }
+
+    private static final Concept MALE = new Concept(8507, "MALE", "Gender", "Gender", "M");
+    private static final Concept FEMALE = new Concept(8532, "FEMALE", "Gender", "Gender", "F");
+    private static final Concept WHITE = new Concept(8527, "White", "Race", "Race", "5");
+    private static final Concept NOT_HISPANIC = new Concept(38003564, "Not Hispanic or Latino", "Ethnicity", "Ethnicity", "Not Hispanic");
+    private static final Concept INPATIENT = new Concept(9201, "Inpatient Visit", "Visit", "Visit", "IP");
+    private static final Concept OUTPATIENT = new Concept(9202, "Outpatient Visit", "Visit", "Visit", "OP");
+    private static final Concept EMERGENCY = new Concept(9203, "Emergency Room Visit", "Visit", "Visit", "ER");
+    private static final Concept VISIT_TYPE = new Concept(44818517, "Visit derived from encounter on claim", "Type Concept", "Visit Type", "OMOP4822465");
+    private static final Concept CONDITION_TYPE = new Concept(32020, "EHR encounter diagnosis", "Type Concept", "Condition Type", "OMOP4822053");
+    private static final Concept DRUG_TYPE = new Concept(38000177, "Prescription written", "Type Concept", "Drug Type", "OMOP4822241");
+    private static final Concept PROCEDURE_TYPE = new Concept(38000275, "EHR order list entry", "Type Concept", "Procedure Type", "OMOP4822262");
+    private static final Concept MEASUREMENT_TYPE = new Concept(44818702, "Lab result", "Type Concept", "Meas Type", "OMOP4822432");
+    private static final Concept ACTIVE = new Concept(4230359, "Active", "Condition Status", "SNOMED", "55561003");
+    private static final Concept RESOLVED = new Concept(4201906, "Resolved", "Condition Status", "SNOMED", "413322009");
+    private static final Concept INPATIENT_HOSPITAL = new Concept(8717, "Inpatient Hospital", "Place of Service", "CMS Place of Service", "21");
+    private static final Concept OFFICE = new Concept(8940, "Office", "Place of Service", "CMS Place of Service", "11");
+    private static final Concept PERCENT = new Concept(8554, "percent", "Unit", "UCUM", "%");
+    private static final Concept PER_MINUTE = new Concept(8541, "per minute", "Unit", "UCUM", "/min");
+    private static final Concept KILOGRAM = new Concept(9529, "kilogram", "Unit", "UCUM", "kg");
+
+    /** Alzheimer's disease and descendants; the first one is the ancestor. */
+    private static final Concept[] ALZHEIMERS = {
+            new Concept(378419, "Alzheimer's disease", "Condition", "SNOMED", "26929004"),
+            new Concept(4218017, "Alzheimer's disease with early onset", "Condition", "SNOMED", "416975007"),
+            new Concept(4220313, "Alzheimer's disease with late onset", "Condition", "SNOMED", "416780008"),
+    };
+    private static final Concept[] OTHER_CONDITIONS = {
+            new Concept(320128, "Essential hypertension", "Condition", "SNOMED", "59621000"),
+            new Concept(201826, "Type 2 diabetes mellitus", "Condition", "SNOMED", "44054006"),
+            new Concept(317009, "Asthma", "Condition", "SNOMED", "195967001"),
+            new Concept(255848, "Pneumonia", "Condition", "SNOMED", "233604007"),
+            new Concept(4329847, "Myocardial infarction", "Condition", "SNOMED", "22298006"),
+    };
+    /** Delivery procedure and descendants; the first one is the ancestor. */
+    private static final Concept[] DELIVERIES = {
+            new Concept(4128030, "Delivery procedure", "Procedure", "SNOMED", "236973005"),
+            new Concept(2110308, "Routine obstetric care including antepartum care, vaginal delivery and postpartum care", "Procedure", "CPT4", "59610"),
+            new Concept(2110316, "Routine obstetric care including antepartum care, cesarean delivery and postpartum care", "Procedure", "CPT4", "59618"),
+    };
+    private static final Concept[] OTHER_PROCEDURES = {
+            new Concept(2313869, "Electrocardiogram, routine ECG with at least 12 leads", "Procedure", "CPT4", "93000"),
+            new Concept(2211361, "Radiologic examination, chest, 2 views", "Procedure", "CPT4", "71046"),
+            new Concept(4058899, "Appendectomy", "Procedure", "SNOMED", "80146002"),
+    };
+    private static final Concept TRAZODONE = new Concept(40163473, "trazodone hydrochloride 50 MG Oral Tablet", "Drug", "RxNorm", "856377");
+    private static final Concept[] OTHER_DRUGS = {
+            new Concept(40163924, "24 HR metformin hydrochloride 500 MG Extended Release Oral Tablet", "Drug", "RxNorm", "860975"),
+            new Concept(19080128, "lisinopril 10 MG Oral Tablet", "Drug", "RxNorm", "314076"),
+            new Concept(40162522, "amoxicillin 500 MG Oral Capsule", "Drug", "RxNorm", "308191"),
+    };
+    private static final Concept[] HBA1C = {
+            new Concept(3005673, "Hemoglobin A1c/Hemoglobin.total in Blood by HPLC", "Measurement", "LOINC", "17856-6"),
+            new Concept(3004410, "Hemoglobin A1c/Hemoglobin.total in Blood", "Measurement", "LOINC", "4548-4"),
+            new Concept(3003309, "Hemoglobin A1c/Hemoglobin.total in Blood by Electrophoresis", "Measurement", "LOINC", "4549-2"),
+    };
+    private static final Concept HEART_RATE = new Concept(3027018, "Heart rate", "Measurement", "LOINC", "8867-4");
+    private static final Concept BODY_WEIGHT = new Concept(3025315, "Body weight", "Measurement", "LOINC", "29463-7");
+    private static final Concept[] SPECIALTIES = {
+            new Concept(38004446, "General Practice", "Provider", "Medicare Specialty", "01"),
+            new Concept(38004458, "Neurology", "Provider", "Medicare Specialty", "13"),
+            new Concept(38004461, "Obstetrics/Gynecology", "Provider", "Medicare Specialty", "16"),
+            new Concept(38004451, "Cardiology", "Provider", "Medicare Specialty", "06"),
+    };
+
+    private static final String[] CITIES = {"Umeå", "Stockholm", "Göteborg", "Malmö", "Uppsala", "Luleå"};
+    private static final String[] STREETS = {"Storgatan", "Kungsgatan", "Skolgatan", "Rådhusesplanaden", "Järnvägsallén"};
+    private static final String[] FIRST_NAMES = {"Anna", "Erik", "Maria", "Lars", "Karin", "Johan", "Eva", "Nils"};
+    private static final String[] LAST_NAMES = {"Andersson", "Johansson", "Karlsson", "Nilsson", "Eriksson", "Larsson"};
+
+    private static final String[] TABLES = {
+            "concept", "concept_ancestor", "concept_relationship", "location", "care_site", "provider", "person",
+            "visit_occurrence", "condition_occurrence", "drug_exposure", "procedure_occurrence", "measurement"
+    };
+
+    private static final String[] DDL = {
+            "CREATE TABLE concept (concept_id INTEGER NOT NULL, concept_name VARCHAR(255) NOT NULL, domain_id VARCHAR(20) NOT NULL, vocabulary_id VARCHAR(20) NOT NULL, concept_code VARCHAR(50) NOT NULL)",
+            "CREATE TABLE concept_ancestor (ancestor_concept_id INTEGER NOT NULL, descendant_concept_id INTEGER NOT NULL, min_levels_of_separation INTEGER NOT NULL, max_levels_of_separation INTEGER NOT NULL)",
+            "CREATE TABLE concept_relationship (concept_id_1 INTEGER NOT NULL, concept_id_2 INTEGER NOT NULL, relationship_id VARCHAR(20) NOT NULL)",
+            "CREATE TABLE location (location_id BIGINT NOT NULL, address_1 VARCHAR(50), address_2 VARCHAR(50), city VARCHAR(50), state VARCHAR(2), zip VARCHAR(9), county VARCHAR(20))",
+            "CREATE TABLE care_site (care_site_id BIGINT NOT NULL, care_site_name VARCHAR(255), place_of_service_concept_id INTEGER, location_id BIGINT)",
+            "CREATE TABLE provider (provider_id BIGINT NOT NULL, provider_name VARCHAR(255), npi VARCHAR(20), dea VARCHAR(20), specialty_concept_id INTEGER, care_site_id BIGINT, year_of_birth INTEGER, gender_concept_id INTEGER)",
+            "CREATE TABLE person (person_id BIGINT NOT NULL, gender_concept_id INTEGER NOT NULL, year_of_birth INTEGER NOT NULL, month_of_birth INTEGER, day_of_birth INTEGER, race_concept_id INTEGER NOT NULL, ethnicity_concept_id INTEGER NOT NULL, location_id BIGINT, provider_id BIGINT)",
+            "CREATE TABLE visit_occurrence (visit_occurrence_id BIGINT NOT NULL, person_id BIGINT NOT NULL, visit_concept_id INTEGER NOT NULL, visit_start_date DATE NOT NULL, visit_start_datetime TIMESTAMP, visit_end_date DATE NOT NULL, visit_end_datetime TIMESTAMP, visit_type_concept_id INTEGER NOT NULL, provider_id BIGINT, preceding_visit_occurrence_id BIGINT)",
+            "CREATE TABLE condition_occurrence (condition_occurrence_id BIGINT NOT NULL, person_id BIGINT NOT NULL, condition_concept_id INTEGER NOT NULL, condition_start_date DATE NOT NULL, condition_start_datetime TIMESTAMP, condition_end_datetime TIMESTAMP, condition_type_concept_id INTEGER NOT NULL, condition_status_concept_id INTEGER, provider_id BIGINT, visit_occurrence_id BIGINT)",
+            "CREATE TABLE drug_exposure (drug_exposure_id BIGINT NOT NULL, person_id BIGINT NOT NULL, drug_concept_id INTEGER NOT NULL, drug_exposure_start_date DATE NOT NULL, drug_exposure_start_datetime TIMESTAMP, drug_exposure_end_datetime TIMESTAMP, drug_type_concept_id INTEGER NOT NULL, stop_reason VARCHAR(20), visit_occurrence_id BIGINT)",
+            "CREATE TABLE procedure_occurrence (procedure_occurrence_id BIGINT NOT NULL, person_id BIGINT NOT NULL, procedure_concept_id INTEGER NOT NULL, procedure_date DATE NOT NULL, procedure_datetime TIMESTAMP, procedure_type_concept_id INTEGER NOT NULL, provider_id BIGINT, visit_occurrence_id BIGINT)",
+            "CREATE TABLE measurement (measurement_id BIGINT NOT NULL, person_id BIGINT NOT NULL, measurement_concept_id INTEGER NOT NULL, measurement_date DATE NOT NULL, measurement_datetime TIMESTAMP, measurement_type_concept_id INTEGER NOT NULL, value_as_number NUMERIC, value_as_concept_id INTEGER, unit_concept_id INTEGER, range_low NUMERIC, range_high NUMERIC, provider_id BIGINT, visit_occurrence_id BIGINT)",
+    };
+
+    private static final String[] INDEXES = {
+            "ALTER TABLE concept ADD PRIMARY KEY (concept_id)",
+            "ALTER TABLE location ADD PRIMARY KEY (location_id)",
+            "ALTER TABLE care_site ADD PRIMARY KEY (care_site_id)",
+            "ALTER TABLE provider ADD PRIMARY KEY (provider_id)",
+            "ALTER TABLE person ADD PRIMARY KEY (person_id)",
+            "ALTER TABLE visit_occurrence ADD PRIMARY KEY (visit_occurrence_id)",
+            "ALTER TABLE condition_occurrence ADD PRIMARY KEY (condition_occurrence_id)",
+            "ALTER TABLE drug_exposure ADD PRIMARY KEY (drug_exposure_id)",
+            "ALTER TABLE procedure_occurrence ADD PRIMARY KEY (procedure_occurrence_id)",
+            "ALTER TABLE measurement ADD PRIMARY KEY (measurement_id)",
+            "CREATE INDEX idx_concept_ancestor_ancestor ON concept_ancestor (ancestor_concept_id)",
+            "CREATE INDEX idx_visit_person ON visit_occurrence (person_id)",
+            "CREATE INDEX idx_condition_person ON condition_occurrence (person_id)",
+            "CREATE INDEX idx_condition_concept ON condition_occurrence (condition_concept_id)",
+            "CREATE INDEX idx_drug_person ON drug_exposure (person_id)",
+            "CREATE INDEX idx_drug_concept ON drug_exposure (drug_concept_id)",
+            "CREATE INDEX idx_procedure_person ON procedure_occurrence (person_id)",
+            "CREATE INDEX idx_procedure_concept ON procedure_occurrence (procedure_concept_id)",
+            "CREATE INDEX idx_measurement_person ON measurement (person_id)",
+            "CREATE INDEX idx_measurement_concept ON measurement (measurement_concept_id)",
+    };
+
+    private final String jdbcUrl;
+    private final Properties connectionProperties;
+    private final long patients;
+    private final long seed;
+    private final int threads;
+    private final int batchSize;
+
+    private final long locations;
+    private final long careSites;
+    private final long providers;
+
+    OmopDataGenerator(String jdbcUrl, Properties connectionProperties, long patients, long seed, int threads, int batchSize) {
+        // Lets the PostgreSQL driver send each batch as multi-row INSERT statements
+        if (jdbcUrl.startsWith("jdbc:postgresql:") && !jdbcUrl.contains("reWriteBatchedInserts")) {
+            jdbcUrl += (jdbcUrl.contains("?") ? "&" : "?") + "reWriteBatchedInserts=true";
+        }
+        this.jdbcUrl = jdbcUrl;
+        this.connectionProperties = connectionProperties;
+        this.patients = patients;
+        this.seed = seed;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.locations = Math.max(10, patients / 4);
+        this.providers = Math.max(10, patients / 200);
+        this.careSites = Math.max(2, providers / 20);
+    }
+
+    /**
+     * Drops and recreates the OMOP tables, loads them and builds the indexes.
+     */
+    void generate() throws SQLException, InterruptedException {
+        long start = System.nanoTime();
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            for (String table : TABLES) {
+                statement.execute("DROP TABLE IF EXISTS " + table);
+            }
+            for (String ddl : DDL) {
+                statement.execute(ddl);
+            }
+            connection.commit();
+            insertVocabulary(connection);
+            insertOrganisations(connection);
+        }
+        insertPatients();
+
+        System.out.println("Creating indexes...");
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            for (String index : INDEXES) {
+                statement.execute(index);
+            }
+            if (jdbcUrl.startsWith("jdbc:postgresql:")) {
+                statement.execute("ANALYZE");
+            }
+            connection.commit();
+        }
+        System.out.printf("✅ Generated %d patients in %.1f s%n", patients, (System.nanoTime() - start) / 1e9);
+    }
+
+    private Connection connect() throws SQLException {
+        Connection connection = DriverManager.getConnection(jdbcUrl, connectionProperties);
+        connection.setAutoCommit(false);
+        return connection;
+    }
+
+    private static List<Concept> allConcepts() {
+        List<Concept> concepts = new ArrayList<>(Arrays.asList(MALE, FEMALE, WHITE, NOT_HISPANIC, INPATIENT, OUTPATIENT, EMERGENCY,
+                VISIT_TYPE, CONDITION_TYPE, DRUG_TYPE, PROCEDURE_TYPE, MEASUREMENT_TYPE, ACTIVE, RESOLVED,
+                INPATIENT_HOSPITAL, OFFICE, PERCENT, PER_MINUTE, KILOGRAM, TRAZODONE, HEART_RATE, BODY_WEIGHT));
+        for (Concept[] group : Arrays.asList(ALZHEIMERS, OTHER_CONDITIONS, DELIVERIES, OTHER_PROCEDURES, OTHER_DRUGS, HBA1C, SPECIALTIES)) {
+            concepts.addAll(Arrays.asList(group));
+        }
+        return concepts;
+    }
+
+    private void insertVocabulary(Connection connection) throws SQLException {
+        List<Concept> concepts = allConcepts();
+        try (BatchWriter concept = new BatchWriter(connection, "concept", 5, batchSize);
+             BatchWriter ancestor = new BatchWriter(connection, "concept_ancestor", 4, batchSize);
+             BatchWriter relationship = new BatchWriter(connection, "concept_relationship", 3, batchSize)) {
+            for (Concept c : concepts) {
+                concept.add(c.id, c.name, c.domain, c.vocabulary, c.code);
+                ancestor.add(c.id, c.id, 0, 0);
+                relationship.add(c.id, c.id, "Maps to");
+            }
+            for (int i = 1; i < ALZHEIMERS.length; i++) {
+                ancestor.add(ALZHEIMERS[0].id, ALZHEIMERS[i].id, 1, 1);
+            }
+            for (int i = 1; i < DELIVERIES.length; i++) {
+                ancestor.add(DELIVERIES[0].id, DELIVERIES[i].id, 1, 1);
+            }
+        }
+        connection.commit();
+        System.out.println("Inserted " + concepts.size() + " concepts");
+    }
+
+    private void insertOrganisations(Connection connection) throws SQLException {
+        Random random = new Random(seed);
+        try (BatchWriter location = new BatchWriter(connection, "location", 7, batchSize);
+             BatchWriter careSite = new BatchWriter(connection, "care_site", 4, batchSize);
+             BatchWriter provider = new BatchWriter(connection, "provider", 8, batchSize)) {
+            for (long id = 1; id <= locations; id++) {
+                location.add(id, pick(random, STREETS) + " " + (1 + random.nextInt(120)),
+                        random.nextInt(4) == 0 ? "Lgh " + (1000 + random.nextInt(300)) : null,
+                        pick(random, CITIES), "AC", String.format("%05d", 10000 + random.nextInt(90000)), "Västerbotten");
+            }
+            for (long id = 1; id <= careSites; id++) {
+                boolean hospital = id % 3 == 1;
+                careSite.add(id, (hospital ? "Hospital " : "Health centre ") + id,
+                        (hospital ? INPATIENT_HOSPITAL : OFFICE).id, 1 + (id - 1) % locations);
+            }
+            for (long id = 1; id <= providers; id++) {
+                provider.add(id, pick(random, FIRST_NAMES) + " " + pick(random, LAST_NAMES),
+                        String.valueOf(1000000000L + id), "B" + String.format("%08d", id),
+                        pick(random, SPECIALTIES).id, 1 + (id - 1) % careSites,
+                        1950 + random.nextInt(45), (random.nextBoolean() ? MALE : FEMALE).id);
+            }
+        }
+        connection.commit();
+        System.out.println("Inserted " + locations + " locations, " + careSites + " care sites and " + providers + " providers");
+    }
+
+    private void insertPatients() throws InterruptedException, SQLException {
+        long chunks = (patients + PATIENTS_PER_CHUNK - 1) / PATIENTS_PER_CHUNK;
+        AtomicLong done = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (long chunk = 0; chunk < chunks; chunk++) {
+            long first = chunk * PATIENTS_PER_CHUNK + 1;
+            long last = Math.min(patients, first + PATIENTS_PER_CHUNK - 1);
+            long chunkSeed = seed * 31 + chunk;
+            futures.add(executor.submit(() -> {
+                insertPatientChunk(first, last, new Random(chunkSeed));
+                System.out.println("Generated " + done.addAndGet(last - first + 1) + " / " + patients + " patients");
+                return null;
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void insertPatientChunk(long firstPerson, long lastPerson, Random random) throws SQLException {
+        try (Connection connection = connect();
+             BatchWriter person = new BatchWriter(connection, "person", 9, batchSize);
+             BatchWriter visit = new BatchWriter(connection, "visit_occurrence", 10, batchSize);
+             BatchWriter condition = new BatchWriter(connection, "condition_occurrence", 10, batchSize);
+             BatchWriter drug = new BatchWriter(connection, "drug_exposure", 9, batchSize);
+             BatchWriter procedure = new BatchWriter(connection, "procedure_occurrence", 8, batchSize);
+             BatchWriter measurement = new BatchWriter(connection, "measurement", 13, batchSize)) {
+            for (long personId = firstPerson; personId <= lastPerson; personId++) {
+                boolean male = random.nextBoolean();
+                int yearOfBirth = 1930 + random.nextInt(80);
+                long providerId = 1 + (long) (random.nextDouble() * providers);
+                person.add(personId, (male ? MALE : FEMALE).id, yearOfBirth, 1 + random.nextInt(12),
+                        1 + random.nextInt(28), WHITE.id, NOT_HISPANIC.id, 1 + (long) (random.nextDouble() * locations), providerId);
+
+                // Visits; about one in five is an inpatient stay, most of them lasting five days or more
+                int visitCount = 1 + random.nextInt(5);
+                long[] visitIds = new long[visitCount];
+                LocalDateTime[] visitStarts = new LocalDateTime[visitCount];
+                for (int v = 0; v < visitCount; v++) {
+                    visitIds[v] = eventId(personId, v);
+                    visitStarts[v] = randomDateTime(random);
+                    double type = random.nextDouble();
+                    Concept visitConcept = type < 0.2 ? INPATIENT : type < 0.9 ? OUTPATIENT : EMERGENCY;
+                    LocalDateTime end = visitConcept == INPATIENT
+                            ? visitStarts[v].plusDays(1 + random.nextInt(12)).plusHours(random.nextInt(12))
+                            : visitStarts[v].plusHours(1 + random.nextInt(6));
+                    visit.add(visitIds[v], personId, visitConcept.id, Date.valueOf(visitStarts[v].toLocalDate()),
+                            Timestamp.valueOf(visitStarts[v]), Date.valueOf(end.toLocalDate()), Timestamp.valueOf(end),
+                            VISIT_TYPE.id, providerId, v > 0 ? visitIds[v - 1] : null);
+                }
+
+                int conditionCount = random.nextInt(4);
+                boolean alzheimers = yearOfBirth < 1960 && random.nextInt(10) == 0;
+                for (int c = 0; c < conditionCount + (alzheimers ? 1 : 0); c++) {
+                    Concept concept = alzheimers && c == conditionCount ? pick(random, ALZHEIMERS) : pick(random, OTHER_CONDITIONS);
+                    int v = random.nextInt(visitCount);
+                    LocalDateTime onset = visitStarts[v].plusHours(random.nextInt(4));
+                    boolean resolved = !(alzheimers && c == conditionCount) && random.nextInt(3) == 0;
+                    condition.add(eventId(personId, c), personId, concept.id, Date.valueOf(onset.toLocalDate()),
+                            Timestamp.valueOf(onset), resolved ? Timestamp.valueOf(onset.plusDays(7 + random.nextInt(60))) : null,
+                            CONDITION_TYPE.id, (resolved ? RESOLVED : ACTIVE).id, providerId, visitIds[v]);
+                }
+
+                int drugCount = random.nextInt(3);
+                boolean trazodone = random.nextInt(20) == 0;
+                for (int d = 0; d < drugCount + (trazodone ? 1 : 0); d++) {
+                    Concept concept = trazodone && d == drugCount ? TRAZODONE : pick(random, OTHER_DRUGS);
+                    int v = random.nextInt(visitCount);
+                    LocalDateTime drugStart = visitStarts[v].plusHours(random.nextInt(4));
+                    drug.add(eventId(personId, d), personId, concept.id, Date.valueOf(drugStart.toLocalDate()),
+                            Timestamp.valueOf(drugStart), Timestamp.valueOf(drugStart.plusDays(10 + random.nextInt(80))),
+                            DRUG_TYPE.id, random.nextInt(10) == 0 ? "Adverse event" : null, visitIds[v]);
+                }
+
+                int procedureCount = random.nextInt(2);
+                boolean delivery = !male && yearOfBirth >= 1975 && yearOfBirth < 2002 && random.nextInt(8) == 0;
+                for (int p = 0; p < procedureCount + (delivery ? 1 : 0); p++) {
+                    Concept concept = delivery && p == procedureCount ? pick(random, DELIVERIES) : pick(random, OTHER_PROCEDURES);
+                    int v = random.nextInt(visitCount);
+                    LocalDateTime performed = visitStarts[v].plusHours(random.nextInt(4));
+                    procedure.add(eventId(personId, p), personId, concept.id, Date.valueOf(performed.toLocalDate()),
+                            Timestamp.valueOf(performed), PROCEDURE_TYPE.id, providerId, visitIds[v]);
+                }
+
+                // One HbA1c test for about a third of the patients, with roughly a tenth of the values at 10% or above
+                int measurementCount = 1 + random.nextInt(4);
+                boolean hba1c = random.nextInt(3) == 0;
+                for (int m = 0; m < measurementCount + (hba1c ? 1 : 0); m++) {
+                    int v = random.nextInt(visitCount);
+                    LocalDateTime taken = visitStarts[v].plusHours(random.nextInt(4));
+                    Concept concept;
+                    Concept unit;
+                    double value;
+                    double low;
+                    double high;
+                    if (hba1c && m == measurementCount) {
+                        concept = pick(random, HBA1C);
+                        unit = PERCENT;
+                        value = round(Math.min(15.0, 5.0 + Math.abs(random.nextGaussian()) * 3.0));
+                        low = 4.0;
+                        high = 5.6;
+                    } else if (random.nextBoolean()) {
+                        concept = HEART_RATE;
+                        unit = PER_MINUTE;
+                        value = 55 + random.nextInt(60);
+                        low = 60;
+                        high = 100;
+                    } else {
+                        concept = BODY_WEIGHT;
+                        unit = KILOGRAM;
+                        value = round(45 + random.nextDouble() * 70);
+                        low = 40;
+                        high = 120;
+                    }
+                    measurement.add(eventId(personId, m), personId, concept.id, Date.valueOf(taken.toLocalDate()),
+                            Timestamp.valueOf(taken), MEASUREMENT_TYPE.id, value, null, unit.id, low, high, providerId, visitIds[v]);
+                }
+            }
+            person.flush();
+            visit.flush();
+            condition.flush();
+            drug.flush();
+            procedure.flush();
+            measurement.flush();
+            connection.commit();
+        }
+    }
+
+    private static long eventId(long personId, int index) {
+        return personId * MAX_EVENTS_PER_PATIENT + index;
+    }
+
+    private static LocalDateTime randomDateTime(Random random) {
+        return FIRST_EVENT_DATE.plusDays(random.nextInt(EVENT_DATE_RANGE_DAYS)).atTime(random.nextInt(24), random.nextInt(60));
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    private static <T> T pick(Random random, T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    /**
+     * Inserts rows into one table through a prepared statement, sending a batch every
+     * {@code batchSize} rows.
+     */
+    private static final class BatchWriter implements AutoCloseable {
+        private final PreparedStatement statement;
+        private final int batchSize;
+        private int pending;
+
+        BatchWriter(Connection connection, String table, int columns, int batchSize) throws SQLException {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" VALUES (");
+            for (int i = 0; i < columns; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            this.statement = connection.prepareStatement(sql.append(')').toString());
+            this.batchSize = batchSize;
+        }
+
+        void add(Object... values) throws SQLException {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) {
+                    statement.setNull(i + 1, Types.NULL);
+                } else {
+                    statement.setObject(i + 1, values[i]);
+                }
+            }
+            statement.addBatch();
+            if (++pending == batchSize) {
+                flush();
+            }
+        }
+
+        void flush() throws SQLException {
+            if (pending > 0) {
+                statement.executeBatch();
+                pending = 0;
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                flush();
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+    static Properties connectionProperties(String user, String password) {
+        Properties properties = new Properties();
+        if (user != null) {
+            properties.setProperty("user", user);
+        }
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+        return properties;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: OmopDataGenerator --jdbc-url <url> [--jdbc-user <name>] [--jdbc-password <password>]");
+        System.out.println("         [--patients <n>] [--seed <n>] [--threads <n>] [--batch-size <n>]");
+        System.out.println("Existing OMOP tables in the target database are dropped and recreated.");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        if (!options.containsKey("--jdbc-url") || args.length % 2 != 0) {
+            printUsage();
+            return;
+        }
+
+        OmopDataGenerator generator = new OmopDataGenerator(options.get("--jdbc-url"),
+                connectionProperties(options.get("--jdbc-user"), options.get("--jdbc-password")),
+                Long.parseLong(options.getOrDefault("--patients", "10000")),
+                Long.parseLong(options.getOrDefault("--seed", "42")),
+                Integer.parseInt(options.getOrDefault("--threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(options.getOrDefault("--batch-size", "5000")));
+        generator.generate();
+    }
+}
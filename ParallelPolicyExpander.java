@@ -0,0 +1,155 @@
+package se.umea.mapgen;
+
+import org.semanticweb.owlapi.model.OWLOntology;
+import ppmappingcompiler.policy.OntologyConjunctiveQuery;
+import se.umea.mapgen.reformulation.OntopReformulationAPI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Expands the (role, rule) pairs of several policies in parallel.
+ * <p>
+ * All workers share one loaded ontology. Rewriters are taken from a small pool that grows up to the
+ * degree of parallelism, because {@link OntopReformulationAPI} is not guaranteed to be thread-safe.
+ * Results are collected in submission order, so the output does not depend on scheduling.
+ * When a {@link ReformulationCache} is given, cached expansions are loaded instead of recomputed and
+ * rewriters are only built once a rule actually misses the cache. Each rule's expansion is reduced to
+ * its distinct rules as it is produced, and a role's expansions are merged without duplicates.
+ * Rewriter construction, cache loads and every rule expansion are recorded in the run's
+ * {@link CompilationMetrics}.
+ */
+class ParallelPolicyExpander implements AutoCloseable {
+
+    private final OWLOntology ontology;
+    private final Callable<OntopReformulationAPI> rewriterFactory;
+    private final int parallelism;
+    private final ReformulationCache cache;
+    private final CompilationMetrics metrics;
+    private final BlockingQueue<OntopReformulationAPI> idleRewriters = new LinkedBlockingQueue<>();
+    private final ExecutorService executor;
+    private int createdRewriters;
+
+    ParallelPolicyExpander(OWLOntology ontology, Callable<OntopReformulationAPI> rewriterFactory, int parallelism,
+                           ReformulationCache cache, CompilationMetrics metrics) {
+        this.ontology = ontology;
+        this.rewriterFactory = rewriterFactory;
+        this.parallelism = Math.max(1, parallelism);
+        this.cache = cache;
+        this.metrics = metrics;
+        this.executor = Executors.newFixedThreadPool(this.parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "policy-expansion");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Expands every rule of every role. The i-th element of the result holds the distinct expanded
+     * rules of the i-th role, in the same order a sequential run would produce them.
+     */
+    List<ExpandedRuleSet> expandAll(List<List<OntologyConjunctiveQuery>> policyRulesPerRole) throws Exception {
+        return expandAll(policyRulesPerRole, metrics);
+    }
+
+    /**
+     * Like {@link #expandAll(List)}, recording the rule expansions in {@code jobMetrics}. An expander
+     * shared between independent jobs uses this to keep their timings apart.
+     */
+    List<ExpandedRuleSet> expandAll(List<List<OntologyConjunctiveQuery>> policyRulesPerRole,
+                                    CompilationMetrics jobMetrics) throws Exception {
+        List<List<Future<ExpandedRuleSet>>> futuresPerRole = new ArrayList<>();
+        for (List<OntologyConjunctiveQuery> policyRules : policyRulesPerRole) {
+            List<Future<ExpandedRuleSet>> futures = new ArrayList<>();
+            for (OntologyConjunctiveQuery policyRule : policyRules) {
+                futures.add(executor.submit(() -> expand(policyRule, jobMetrics)));
+            }
+            futuresPerRole.add(futures);
+        }
+
+        List<ExpandedRuleSet> expandedPerRole = new ArrayList<>();
+        for (List<Future<ExpandedRuleSet>> futures : futuresPerRole) {
+            ExpandedRuleSet expandedPolicyRules = new ExpandedRuleSet();
+            for (Future<ExpandedRuleSet> future : futures) {
+                expandedPolicyRules.addAll(await(future).rules());
+            }
+            expandedPerRole.add(expandedPolicyRules);
+        }
+        return expandedPerRole;
+    }
+
+    private ExpandedRuleSet expand(OntologyConjunctiveQuery policyRule, CompilationMetrics jobMetrics) throws Exception {
+        String sparql = policyRule.toSparql();
+        if (cache != null) {
+            long start = System.nanoTime();
+            ExpandedRuleSet cached = PolicyExpansion.loadCachedExpansion(cache, sparql);
+            if (cached != null) {
+                jobMetrics.recordPhase("cacheLoad", System.nanoTime() - start);
+                jobMetrics.recordRule(policyRule.toString(), true, 0, 0, 0, 0, cached.size());
+                return cached;
+            }
+        }
+
+        ExpandedRuleSet queries;
+        OntopReformulationAPI rewriter = acquireRewriter(jobMetrics);
+        try {
+            queries = PolicyExpansion.expandRule(rewriter, policyRule, ontology, jobMetrics);
+        } finally {
+            idleRewriters.add(rewriter);
+        }
+
+        if (cache != null) {
+            cache.store(sparql, queries.rules());
+        }
+        return queries;
+    }
+
+    /** Builds one rewriter ahead of the first rule, so that a long-running caller pays for it at startup. */
+    void warmUp() throws Exception {
+        idleRewriters.add(acquireRewriter(metrics));
+    }
+
+    /** Takes an idle rewriter, or builds one while fewer than {@code parallelism} exist, timed in {@code jobMetrics}. */
+    private OntopReformulationAPI acquireRewriter(CompilationMetrics jobMetrics) throws Exception {
+        OntopReformulationAPI rewriter = idleRewriters.poll();
+        if (rewriter != null) {
+            return rewriter;
+        }
+        boolean create;
+        synchronized (this) {
+            create = createdRewriters < parallelism;
+            if (create) {
+                createdRewriters++;
+            }
+        }
+        if (!create) {
+            return idleRewriters.take();
+        }
+        try (CompilationMetrics.Timer ignored = jobMetrics.time("rewriterConstruction", null)) {
+            return rewriterFactory.call();
+        } catch (Exception e) {
+            synchronized (this) {
+                createdRewriters--;
+            }
+            throw e;
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,482 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharSource;
+import com.google.common.io.MoreFiles;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.OWLOntology;
+import ppmappingcompiler.policy.OntologyConjunctiveQuery;
+import se.umea.mapgen.reformulation.OntopReformulationAPI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Resident policy compilation service on localhost.
+ * <p>
+ * Keeps the OWL ontology, the Ontop rewriters and the reformulation cache of one OBDA/OWL/metadata
+ * triple loaded between jobs, so that a small policy edit does not pay for JVM startup, ontology
+ * loading and rewriter construction again. Jobs are posted as JSON, with
+ * {@code Content-Type: application/json} so that a browser page cannot submit them without a CORS
+ * preflight:
+ * <ul>
+ *   <li>{@code POST /expand} with {@code {"policyFile": ..., "role": ..., "output": ..., "format": "json"}}
+ *   expands one role's policy like {@link PolicyExpansion} and returns the expanded rules;</li>
+ *   <li>{@code POST /combine} with {@code {"config": ..., "output": ..., "collapseRoles": false,
+ *   "mergeSources": false}} combines role mapping files like {@link MappingCombinerRBAC}.</li>
+ * </ul>
+ * The {@code output} of a job is resolved inside the service's working directory; absolute paths and
+ * {@code ..} segments are rejected. Jobs are queued and run by a fixed number of workers; the expansions of concurrent jobs share the
+ * rewriter pool. Every response carries the job's own {@link CompilationMetrics} summary. Before an
+ * expansion the input files are checked, and the warm state is rebuilt only when their content has
+ * changed, after the jobs still using the old state have finished. {@code GET /status} reports the
+ * loaded inputs and job counts.
+ */
+class PolicyCompilationService implements AutoCloseable {
+
+    private static final long INPUT_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Everything that is built from the input files and reused between jobs. */
+    private static final class Engine implements AutoCloseable {
+        final String fingerprint;
+        final Instant loadedAt = Instant.now();
+        final OWLOntology ontology;
+        final ParallelPolicyExpander expander;
+        final ReformulationCache cache;
+        final Map<String, Object> startup;
+
+        Engine(String fingerprint, OWLOntology ontology, ParallelPolicyExpander expander, ReformulationCache cache,
+               Map<String, Object> startup) {
+            this.fingerprint = fingerprint;
+            this.ontology = ontology;
+            this.expander = expander;
+            this.cache = cache;
+            this.startup = startup;
+        }
+
+        @Override
+        public void close() {
+            expander.close();
+        }
+    }
+
+    private static final class JobException extends Exception {
+        final int status;
+
+        JobException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final Path obdaFile;
+    private final Path owlFile;
+    private final Path metadataFile;
+    private final int parallelism;
+    private final String cacheDirectory;
+    private final Path workingDirectory = Paths.get("").toAbsolutePath().normalize();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService httpExecutor = Executors.newCachedThreadPool();
+    private final ExecutorService jobExecutor;
+
+    // Jobs hold the read lock while they use the engine; a reload takes the write lock
+    private final ReentrantReadWriteLock engineLock = new ReentrantReadWriteLock();
+    private Engine engine;
+    private volatile String inputStamp;
+    private volatile long lastInputCheck;
+
+    private final AtomicLong jobIds = new AtomicLong();
+    private final AtomicLong queuedJobs = new AtomicLong();
+    private final AtomicLong runningJobs = new AtomicLong();
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    PolicyCompilationService(int port, Path obdaFile, Path owlFile, Path metadataFile, int workers, int parallelism,
+                             String cacheDirectory) throws Exception {
+        this.obdaFile = obdaFile;
+        this.owlFile = owlFile;
+        this.metadataFile = metadataFile;
+        this.parallelism = parallelism;
+        this.cacheDirectory = cacheDirectory;
+        this.jobExecutor = Executors.newFixedThreadPool(Math.max(1, workers), runnable -> {
+            Thread thread = new Thread(runnable, "compilation-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inputStamp = inputStamp();
+        this.engine = loadEngine(contentFingerprint());
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/expand", exchange -> handleJob(exchange, "expand", this::expand));
+        server.createContext("/combine", exchange -> handleJob(exchange, "combine", this::combine));
+        server.createContext("/status", this::handleStatus);
+        server.setExecutor(httpExecutor);
+        server.start();
+    }
+
+    String url() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private Engine loadEngine(String fingerprint) throws Exception {
+        CompilationMetrics metrics = new CompilationMetrics("PolicyCompilationService/load");
+        OWLOntology ontology;
+        try (CompilationMetrics.Timer ignored = metrics.time("ontologyLoad", owlFile.toString());
+             InputStream in = Files.newInputStream(owlFile)) {
+            ontology = OWLManager.createOWLOntologyManager().loadOntologyFromOntologyDocument(in);
+        }
+
+        Properties properties = PolicyExpansion.reformulationProperties();
+        CharSource mappingSource = MoreFiles.asCharSource(obdaFile, Charsets.UTF_8);
+        CharSource ontologySource = MoreFiles.asCharSource(owlFile, Charsets.UTF_8);
+        CharSource metadataSource = MoreFiles.asCharSource(metadataFile, Charsets.UTF_8);
+        ReformulationCache cache = cacheDirectory == null ? null : new ReformulationCache(Paths.get(cacheDirectory),
+                ReformulationCache.DEFAULT_MAX_BYTES, mappingSource, ontologySource, metadataSource, properties);
+        ParallelPolicyExpander expander = new ParallelPolicyExpander(ontology,
+                () -> new OntopReformulationAPI(properties, mappingSource, ontologySource, metadataSource), parallelism,
+                cache, metrics);
+
+        // Build one rewriter up front, so that the first job does not pay for it
+        try (CompilationMetrics.Timer ignored = metrics.time("warmUp", null)) {
+            expander.warmUp();
+        }
+        System.out.println("✅ Loaded " + owlFile + ", " + obdaFile + " and " + metadataFile);
+        return new Engine(fingerprint, ontology, expander, cache, metrics.summary());
+    }
+
+    /**
+     * Rebuilds the engine when the content of an input file changed. File times and sizes are looked
+     * at no more than once a second, and the files are only hashed when those changed.
+     */
+    private void reloadIfInputsChanged() throws Exception {
+        long now = System.nanoTime();
+        if (now - lastInputCheck < INPUT_CHECK_INTERVAL_NANOS) {
+            return;
+        }
+        lastInputCheck = now;
+        String stamp = inputStamp();
+        if (stamp.equals(inputStamp)) {
+            return;
+        }
+
+        engineLock.writeLock().lock();
+        try {
+            if (stamp.equals(inputStamp)) {
+                return;
+            }
+            String fingerprint = contentFingerprint();
+            if (!fingerprint.equals(engine.fingerprint)) {
+                System.out.println("Input files changed, reloading");
+                Engine reloaded = loadEngine(fingerprint);
+                engine.close();
+                engine = reloaded;
+                reloads.incrementAndGet();
+            }
+            inputStamp = stamp;
+        } finally {
+            engineLock.writeLock().unlock();
+        }
+    }
+
+    private String inputStamp() {
+        StringBuilder stamp = new StringBuilder();
+        for (Path file : Arrays.asList(obdaFile, owlFile, metadataFile)) {
+            try {
+                stamp.append(file).append(':').append(Files.getLastModifiedTime(file).toMillis())
+                        .append(':').append(Files.size(file)).append('\n');
+            } catch (IOException e) {
+                stamp.append(file).append(":missing\n");
+            }
+        }
+        return stamp.toString();
+    }
+
+    private String contentFingerprint() throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Path file : Arrays.asList(obdaFile, owlFile, metadataFile)) {
+            hasher.putBytes(MoreFiles.asByteSource(file).hash(Hashing.sha256()).asBytes());
+        }
+        return hasher.hash().toString();
+    }
+
+    @FunctionalInterface
+    private interface Job {
+        Map<String, Object> run(JsonNode request, CompilationMetrics metrics) throws Exception;
+    }
+
+    private void handleJob(HttpExchange exchange, String kind, Job job) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getRequestBody().close();
+            sendJson(exchange, 405, Collections.singletonMap("error", "Use POST"));
+            return;
+        }
+        if (!isJsonContentType(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+            exchange.getRequestBody().close();
+            sendJson(exchange, 415, Collections.singletonMap("error", "Use Content-Type: application/json"));
+            return;
+        }
+        JsonNode request;
+        try (InputStream in = exchange.getRequestBody()) {
+            request = objectMapper.readTree(in);
+        } catch (IOException e) {
+            sendJson(exchange, 400, Collections.singletonMap("error", "Invalid JSON: " + e.getMessage()));
+            return;
+        }
+
+        long id = jobIds.incrementAndGet();
+        long submitted = System.nanoTime();
+        queuedJobs.incrementAndGet();
+        Future<Map<String, Object>> future = jobExecutor.submit(() -> {
+            queuedJobs.decrementAndGet();
+            runningJobs.incrementAndGet();
+            CompilationMetrics metrics = new CompilationMetrics("PolicyCompilationService/" + kind);
+            metrics.recordPhase("queued", System.nanoTime() - submitted);
+            try {
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("job", id);
+                response.put("kind", kind);
+                response.putAll(job.run(request, metrics));
+                response.put("metrics", metrics.summary());
+                return response;
+            } finally {
+                runningJobs.decrementAndGet();
+            }
+        });
+
+        try {
+            Map<String, Object> response = future.get();
+            completedJobs.incrementAndGet();
+            sendJson(exchange, 200, response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            failedJobs.incrementAndGet();
+            sendJson(exchange, 503, Collections.singletonMap("error", "Interrupted"));
+        } catch (ExecutionException e) {
+            failedJobs.incrementAndGet();
+            Throwable cause = e.getCause();
+            int status = cause instanceof JobException ? ((JobException) cause).status : 500;
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("job", id);
+            error.put("error", String.valueOf(cause.getMessage()));
+            System.out.println("❌ " + kind + " job " + id + " failed: " + cause);
+            sendJson(exchange, status, error);
+        }
+    }
+
+    private Map<String, Object> expand(JsonNode request, CompilationMetrics metrics) throws Exception {
+        String policyFile = requiredText(request, "policyFile");
+        String role = requiredText(request, "role");
+        Path output = outputPath(request, ExpandedPolicyFiles.jsonFileName(role));
+        PolicyExpansion.OutputFormat format;
+        try {
+            format = PolicyExpansion.OutputFormat.valueOf(request.path("format").asText("json").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new JobException(400, "Unknown format: " + request.path("format").asText());
+        }
+        if (!Files.isRegularFile(Paths.get(policyFile))) {
+            throw new JobException(404, "Policy file not found: " + policyFile);
+        }
+
+        try (CompilationMetrics.Timer ignored = metrics.time("inputCheck", null)) {
+            reloadIfInputsChanged();
+        }
+        engineLock.readLock().lock();
+        try {
+            List<OntologyConjunctiveQuery> policyRules;
+            try (CompilationMetrics.Timer ignored = metrics.time("policyLoad", policyFile)) {
+                policyRules = PolicyExpansion.loadPolicyRules(policyFile, engine.ontology);
+            }
+            ExpandedRuleSet expanded = engine.expander.expandAll(Collections.singletonList(policyRules), metrics).get(0);
+            PolicyMinimizer.Result<String> minimized = PolicyExpansion.minimizeAndWrite(expanded, role, output, format, metrics);
+            if (engine.cache != null) {
+                engine.cache.saveStatistics();
+            }
+
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("role", role);
+            if (format.writesJson()) {
+                response.put("output", output.toString());
+            }
+            if (format.writesBinary()) {
+                response.put("binaryOutput", BinaryPolicyFile.binaryFileFor(output).toString());
+            }
+            response.put("duplicatesDropped", expanded.duplicates());
+            response.put("minimisation", minimized.summary());
+            response.put("rules", minimized.rules);
+            return response;
+        } finally {
+            engineLock.readLock().unlock();
+        }
+    }
+
+    private Map<String, Object> combine(JsonNode request, CompilationMetrics metrics) throws Exception {
+        String config = requiredText(request, "config");
+        Path output = outputPath(request, "RBACmappings.obda");
+        if (!Files.isRegularFile(Paths.get(config))) {
+            throw new JobException(404, "Mapping configuration not found: " + config);
+        }
+        List<MappingCombinerRBAC.MappingFile> mappingFiles = MappingCombinerRBAC.readConfigurationFile(config);
+        if (mappingFiles.isEmpty()) {
+            throw new JobException(400, "No valid mapping files found in configuration: " + config);
+        }
+
+        if (request.path("collapseRoles").asBoolean(false)) {
+            MappingCombinerRBAC.combineMappingsCollapsingRoles(mappingFiles, output, metrics);
+        } else {
+            MappingCombinerRBAC.combineMappingsWithRoles(mappingFiles, output, parallelism, metrics);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("output", output.toString());
+        if (request.path("mergeSources").asBoolean(false)) {
+            MappingSourceMerger.Result merged = MappingCombinerRBAC.mergeMappingsWithSameSource(output, metrics);
+            response.put("removedSources", merged.removedSources());
+        }
+        return response;
+    }
+
+    private static boolean isJsonContentType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String mediaType = parameters < 0 ? contentType : contentType.substring(0, parameters);
+        return mediaType.trim().equalsIgnoreCase("application/json");
+    }
+
+    /**
+     * Resolves the job's {@code output} inside the working directory, or {@code defaultName} if it has
+     * none, and creates its parent directories.
+     */
+    private Path outputPath(JsonNode request, String defaultName) throws JobException, IOException {
+        String requested = request.path("output").asText(defaultName);
+        Path relative;
+        try {
+            relative = Paths.get(requested);
+        } catch (InvalidPathException e) {
+            throw new JobException(400, "Invalid output: " + requested);
+        }
+        if (relative.isAbsolute() || relative.getRoot() != null) {
+            throw new JobException(400, "Output must be relative to the service directory: " + requested);
+        }
+        for (Path part : relative) {
+            if (part.toString().equals("..")) {
+                throw new JobException(400, "Output must not contain '..': " + requested);
+            }
+        }
+        Path output = workingDirectory.resolve(relative).normalize();
+        if (!output.startsWith(workingDirectory) || output.equals(workingDirectory)) {
+            throw new JobException(400, "Invalid output: " + requested);
+        }
+        Files.createDirectories(output.getParent());
+        return output;
+    }
+
+    private static String requiredText(JsonNode request, String field) throws JobException {
+        JsonNode value = request.get(field);
+        if (value == null || !value.isTextual() || value.asText().trim().isEmpty()) {
+            throw new JobException(400, "Missing \"" + field + "\"");
+        }
+        return value.asText().trim();
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().close();
+        Map<String, Object> status = new LinkedHashMap<>();
+        engineLock.readLock().lock();
+        try {
+            status.put("obda", obdaFile.toString());
+            status.put("owl", owlFile.toString());
+            status.put("metadata", metadataFile.toString());
+            status.put("fingerprint", engine.fingerprint);
+            status.put("loadedAt", engine.loadedAt.toString());
+            status.put("load", engine.startup);
+        } finally {
+            engineLock.readLock().unlock();
+        }
+        status.put("reloads", reloads.get());
+        status.put("queuedJobs", queuedJobs.get());
+        status.put("runningJobs", runningJobs.get());
+        status.put("completedJobs", completedJobs.get());
+        status.put("failedJobs", failedJobs.get());
+        sendJson(exchange, 200, status);
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = objectMapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        jobExecutor.shutdownNow();
+        httpExecutor.shutdownNow();
+        engineLock.writeLock().lock();
+        try {
+            engine.close();
+        } finally {
+            engineLock.writeLock().unlock();
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: PolicyCompilationService --obda <file.obda> --owl <ontology.owl> --metadata <metadata.json>");
+        System.out.println("         [--port <n>] [--workers <n>] [--threads <n>] [--cache <directory>|-]");
+        System.out.println("Then e.g. curl -X POST localhost:8090/expand -H 'Content-Type: application/json' -d '{\"policyFile\": \"PolicyFile.json\", \"role\": \"nurse\"}'");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i], args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        if (!options.containsKey("--obda") || !options.containsKey("--owl") || !options.containsKey("--metadata")) {
+            printUsage();
+            return;
+        }
+
+        String cache = options.getOrDefault("--cache", ReformulationCache.DEFAULT_DIRECTORY);
+        int processors = Runtime.getRuntime().availableProcessors();
+        PolicyCompilationService service = new PolicyCompilationService(
+                Integer.parseInt(options.getOrDefault("--port", "8090")),
+                Paths.get(options.get("--obda")),
+                Paths.get(options.get("--owl")),
+                Paths.get(options.get("--metadata")),
+                Integer.parseInt(options.getOrDefault("--workers", "2")),
+                Integer.parseInt(options.getOrDefault("--threads", String.valueOf(processors))),
+                cache.equals("-") ? null : cache);
+        System.out.println("Policy compilation service listening at " + service.url());
+    }
+}
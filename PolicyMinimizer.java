@@ -0,0 +1,126 @@
+package se.umea.mapgen;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Removes redundant rules from an expanded policy.
+ * <p>
+ * A policy is a union of Boolean conjunctive queries, so a rule that is contained in another rule of
+ * the same policy adds nothing to it. Rules are first deduplicated on their canonical form, then each
+ * remaining rule is checked for containment only against the rules whose predicate signatures are a
+ * subset of its own, found through an inverted index. Among equivalent rules the shortest, then the
+ * first one is kept, so the result does not depend on anything but the input.
+ */
+class PolicyMinimizer {
+
+    static final class Result<T> {
+        final List<T> rules;
+        final int inputSize;
+        final int duplicates;
+        final int subsumed;
+
+        Result(List<T> rules, int inputSize, int duplicates, int subsumed) {
+            this.rules = rules;
+            this.inputSize = inputSize;
+            this.duplicates = duplicates;
+            this.subsumed = subsumed;
+        }
+
+        String summary() {
+            int removed = duplicates + subsumed;
+            return String.format("%d -> %d rules (%d duplicates, %d subsumed, %.1f%% smaller)",
+                    inputSize, rules.size(), duplicates, subsumed,
+                    inputSize == 0 ? 0.0 : 100.0 * removed / inputSize);
+        }
+    }
+
+    /**
+     * @param rules   the expanded rules, in output order
+     * @param datalog renders a rule in Datalog syntax; rules that cannot be parsed are kept untouched
+     */
+    static <T> Result<T> minimize(List<T> rules, Function<? super T, String> datalog) {
+        // Step 1: drop rules that are identical up to variable renaming
+        List<T> distinct = new ArrayList<>();
+        List<DatalogRule> parsed = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        int duplicates = 0;
+        for (T rule : rules) {
+            String text = datalog.apply(rule);
+            DatalogRule datalogRule;
+            try {
+                datalogRule = DatalogRule.parse(text);
+            } catch (IllegalArgumentException e) {
+                datalogRule = null;
+            }
+            String key = datalogRule == null ? text : datalogRule.canonicalForm();
+            if (!seen.add(key)) {
+                duplicates++;
+                continue;
+            }
+            distinct.add(rule);
+            parsed.add(datalogRule);
+        }
+
+        // Step 2: index the rules by predicate signature
+        Map<String, List<Integer>> rulesBySignature = new HashMap<>();
+        List<Set<String>> signatures = new ArrayList<>();
+        for (int i = 0; i < parsed.size(); i++) {
+            Set<String> ruleSignatures = parsed.get(i) == null ? Collections.emptySet() : parsed.get(i).signatures();
+            signatures.add(ruleSignatures);
+            for (String signature : ruleSignatures) {
+                rulesBySignature.computeIfAbsent(signature, s -> new ArrayList<>()).add(i);
+            }
+        }
+
+        // Step 3: drop every rule contained in another one; among equivalent rules keep the preferred one
+        List<T> kept = new ArrayList<>();
+        int subsumed = 0;
+        for (int i = 0; i < parsed.size(); i++) {
+            if (parsed.get(i) != null && isRedundant(i, parsed, signatures, rulesBySignature)) {
+                subsumed++;
+            } else {
+                kept.add(distinct.get(i));
+            }
+        }
+        return new Result<>(kept, rules.size(), duplicates, subsumed);
+    }
+
+    private static boolean isRedundant(int index, List<DatalogRule> parsed, List<Set<String>> signatures,
+                                       Map<String, List<Integer>> rulesBySignature) {
+        DatalogRule rule = parsed.get(index);
+
+        // A rule can only map into this one if all of its signatures occur here
+        Map<Integer, Integer> sharedSignatures = new HashMap<>();
+        for (String signature : signatures.get(index)) {
+            for (int candidate : rulesBySignature.get(signature)) {
+                if (candidate != index) {
+                    sharedSignatures.merge(candidate, 1, Integer::sum);
+                }
+            }
+        }
+
+        List<Integer> candidates = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : sharedSignatures.entrySet()) {
+            if (entry.getValue() == signatures.get(entry.getKey()).size()) {
+                candidates.add(entry.getKey());
+            }
+        }
+        Collections.sort(candidates);
+
+        for (int candidate : candidates) {
+            DatalogRule general = parsed.get(candidate);
+            if (rule.isContainedIn(general) && (!general.isContainedIn(rule) || isPreferred(candidate, index, parsed))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Among equivalent rules, the one with the fewest atoms wins, then the one that comes first. */
+    private static boolean isPreferred(int candidate, int index, List<DatalogRule> parsed) {
+        int candidateSize = parsed.get(candidate).body.size();
+        int size = parsed.get(index).body.size();
+        return candidateSize < size || (candidateSize == size && candidate < index);
+    }
+}
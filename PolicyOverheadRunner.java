@@ -0,0 +1,111 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Measures what the role guards cost as the data grows.
+ * <p>
+ * Two endpoints are expected over the same database: one serving the unguarded
+ * {@code Mapping1.obda} and one serving the role-guarded {@code RBACMapping.obda}. For every
+ * requested number of patients the database is refilled by {@link OmopDataGenerator}, and the
+ * documented queries are run against both endpoints with {@link QuerySuiteRunner}. The median
+ * latencies, result counts and the relative overhead of the guarded mappings are printed and written
+ * to a JSON file.
+ */
+class PolicyOverheadRunner {
+
+    private static void printUsage() {
+        System.out.println("Usage: PolicyOverheadRunner --jdbc-url <url> --unguarded <endpoint> --guarded <endpoint>");
+        System.out.println("         [--jdbc-user <name>] [--jdbc-password <password>] [--patients <n,n,...>] [--seed <n>]");
+        System.out.println("         [--role <role>] [--user <name>] [--queries <file.md,...>] [--warmup <n>] [--iterations <n>]");
+        System.out.println("         [--output <file>]");
+        System.out.println("The unguarded endpoint serves Mapping1.obda and the guarded one RBACMapping.obda, both over --jdbc-url.");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        if (args.length % 2 != 0 || !options.containsKey("--jdbc-url")
+                || !options.containsKey("--unguarded") || !options.containsKey("--guarded")) {
+            printUsage();
+            return;
+        }
+
+        List<QuerySuiteRunner.SuiteQuery> queries = new ArrayList<>();
+        for (String file : options.getOrDefault("--queries", "Sparql queries.md").split(",")) {
+            queries.addAll(QuerySuiteRunner.extractQueries(Paths.get(file.trim())));
+        }
+        List<String> roles = Collections.singletonList(options.getOrDefault("--role", "pharmacist"));
+        String user = options.getOrDefault("--user", "benchmark");
+        int warmup = Integer.parseInt(options.getOrDefault("--warmup", "1"));
+        int iterations = Integer.parseInt(options.getOrDefault("--iterations", "3"));
+        long seed = Long.parseLong(options.getOrDefault("--seed", "42"));
+        Properties connectionProperties = OmopDataGenerator.connectionProperties(
+                options.get("--jdbc-user"), options.get("--jdbc-password"));
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (SparqlClient unguarded = new SparqlClient(options.get("--unguarded"));
+             SparqlClient guarded = new SparqlClient(options.get("--guarded"))) {
+            for (String size : options.getOrDefault("--patients", "10000,100000,1000000").split(",")) {
+                long patients = Long.parseLong(size.trim());
+                System.out.println("\n=== " + patients + " patients ===");
+                new OmopDataGenerator(options.get("--jdbc-url"), connectionProperties, patients, seed,
+                        Runtime.getRuntime().availableProcessors(), 5000).generate();
+
+                List<QuerySuiteRunner.RunResult> baseline = QuerySuiteRunner.run(unguarded, user, queries, roles, warmup, iterations);
+                List<QuerySuiteRunner.RunResult> withPolicies = QuerySuiteRunner.run(guarded, user, queries, roles, warmup, iterations);
+                for (int i = 0; i < baseline.size(); i++) {
+                    rows.add(row(patients, baseline.get(i), withPolicies.get(i)));
+                }
+                printTable(rows, patients);
+            }
+        }
+
+        File outputFile = new File(options.getOrDefault("--output", "policy_overhead.json"));
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+        objectMapper.writeValue(outputFile, rows);
+        System.out.println("\nResults written to " + outputFile);
+    }
+
+    private static Map<String, Object> row(long patients, QuerySuiteRunner.RunResult unguarded, QuerySuiteRunner.RunResult guarded) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("patients", patients);
+        row.put("query", unguarded.query.name);
+        row.put("role", unguarded.role);
+        row.put("unguardedMs", unguarded.timingsMillis.isEmpty() ? null : unguarded.medianMillis());
+        row.put("guardedMs", guarded.timingsMillis.isEmpty() ? null : guarded.medianMillis());
+        row.put("unguardedResults", unguarded.resultCount);
+        row.put("guardedResults", guarded.resultCount);
+        if (unguarded.error != null || guarded.error != null) {
+            row.put("error", unguarded.error != null ? unguarded.error : guarded.error);
+        }
+        return row;
+    }
+
+    private static void printTable(List<Map<String, Object>> rows, long patients) {
+        System.out.printf("%n%-32s %12s %12s %10s %12s %12s%n",
+                "Query", "Mapping1 ms", "RBAC ms", "Overhead", "Mapping1 #", "RBAC #");
+        for (Map<String, Object> row : rows) {
+            if (!row.get("patients").equals(patients)) {
+                continue;
+            }
+            Double unguardedMs = (Double) row.get("unguardedMs");
+            Double guardedMs = (Double) row.get("guardedMs");
+            String overhead = unguardedMs == null || guardedMs == null
+                    ? "error"
+                    : String.format("%+.1f%%", (guardedMs / unguardedMs - 1) * 100);
+            System.out.printf("%-32s %12s %12s %10s %12d %12d%n", row.get("query"),
+                    unguardedMs == null ? "-" : String.format("%.2f", unguardedMs),
+                    guardedMs == null ? "-" : String.format("%.2f", guardedMs),
+                    overhead, row.get("unguardedResults"), row.get("guardedResults"));
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.query.MalformedQueryException;
+import org.eclipse.rdf4j.query.algebra.*;
+import org.eclipse.rdf4j.query.parser.ParsedBooleanQuery;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
+import org.eclipse.rdf4j.query.parser.sparql.SPARQLParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognises queries whose answers the denial policies of a role are guaranteed to censor.
+ * <p>
+ * The expanded rules of a role ({@code expanded_policy_<role>.json}, as written by
+ * {@link PolicyExpansion}) are indexed by the predicates of their bodies. For an incoming query,
+ * the triple patterns every answer needs (outside OPTIONAL, UNION, MINUS and nested sub-selects) are
+ * turned into atoms over the same local names of the FHIR namespace (patterns over other vocabularies,
+ * such as {@code rdfs:label}, are left out), and the rules whose predicates all occur among them
+ * are checked for a homomorphism into the query. If one exists, every answer would reveal an instance
+ * of the policy, which the role-embedded mappings never produce, so the answer is empty. Query
+ * variables are treated as distinct constants and only Boolean rules are used, so a match is never
+ * claimed where the pattern is not really contained.
+ * <p>
+ * A role's file is read on its first check and its modification time is remembered, so that
+ * {@link #policiesChanged()} can tell when it was written, replaced or deleted since.
+ * <p>
+ * The check is only sound when the request carries a single role: with several roles the user sees
+ * the union of their mappings, in which a policy instance may be completed from two roles.
+ */
+class PolicyPreCheck {
+
+    /** Namespace of the ontology the policies are written over. */
+    static final String POLICY_NAMESPACE = "http://hl7.org/fhir/";
+
+    /** Outcome of {@link #check}. */
+    static final class Verdict {
+        final String role;
+        /** The denial rule contained in the query, or {@code null} if the query may have answers. */
+        final String rule;
+        final boolean ask;
+        /** True for queries whose empty answer is not an empty result set, e.g. COUNT without GROUP BY. */
+        final boolean aggregate;
+        final List<String> variables;
+
+        Verdict(String role, String rule, boolean ask, boolean aggregate, List<String> variables) {
+            this.role = role;
+            this.rule = rule;
+            this.ask = ask;
+            this.aggregate = aggregate;
+            this.variables = variables;
+        }
+
+        boolean guaranteedEmpty() {
+            return rule != null;
+        }
+
+        /** True if the empty answer can be sent without running the query. */
+        boolean canShortCircuit() {
+            return rule != null && !aggregate;
+        }
+    }
+
+    private static final class RoleIndex {
+        final Map<String, List<DatalogRule>> rulesBySignature = new HashMap<>();
+        int rules;
+    }
+
+    private static final class QueryPattern {
+        final List<String> atoms = new ArrayList<>();
+        final Map<String, String> variableNames = new HashMap<>();
+        boolean aggregate;
+    }
+
+    private final Path policyDirectory;
+    private final Map<String, Optional<RoleIndex>> indexes = new ConcurrentHashMap<>();
+    // Role -> modification time and size of its policy file when it was loaded, or "missing"
+    private final Map<String, String> policyFingerprints = new ConcurrentHashMap<>();
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong guaranteedEmpty = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+    private final AtomicLong unparsed = new AtomicLong();
+
+    PolicyPreCheck(Path policyDirectory) {
+        this.policyDirectory = policyDirectory;
+    }
+
+    /**
+     * Checks the query for the roles of an {@code x-roles} header. Returns {@code null} when the
+     * request does not carry exactly one role or the query cannot be parsed.
+     */
+    Verdict check(String query, String roles) {
+        checked.incrementAndGet();
+        List<String> roleList = new ArrayList<>();
+        for (String role : roles.split(",")) {
+            if (!role.trim().isEmpty()) {
+                roleList.add(role.trim());
+            }
+        }
+        if (roleList.size() != 1) {
+            return null;
+        }
+        String role = roleList.get(0);
+        RoleIndex index = indexes.computeIfAbsent(role, this::loadIndex).orElse(null);
+        if (index == null) {
+            return null;
+        }
+
+        ParsedQuery parsed;
+        try {
+            parsed = new SPARQLParser().parseQuery(query, null);
+        } catch (MalformedQueryException e) {
+            unparsed.incrementAndGet();
+            return null;
+        }
+        boolean ask = parsed instanceof ParsedBooleanQuery;
+        QueryPattern pattern = new QueryPattern();
+        collectRequiredAtoms(parsed.getTupleExpr(), pattern, false);
+        // CONSTRUCT and DESCRIBE answers are graphs, which are not synthesised here
+        pattern.aggregate |= !ask && !(parsed instanceof ParsedTupleQuery);
+
+        String rule = pattern.atoms.isEmpty() ? null : findContainedRule(index, pattern);
+        Verdict verdict = new Verdict(role, rule, ask, pattern.aggregate,
+                new ArrayList<>(parsed.getTupleExpr().getBindingNames()));
+        if (verdict.guaranteedEmpty()) {
+            guaranteedEmpty.incrementAndGet();
+        }
+        return verdict;
+    }
+
+    /** Counts a query that was answered from its verdict instead of being executed. */
+    void recordShortCircuit() {
+        shortCircuited.incrementAndGet();
+    }
+
+    /** Forgets the loaded policies, so that they are read again on the next check. */
+    void reload() {
+        indexes.clear();
+        policyFingerprints.clear();
+    }
+
+    /**
+     * Returns whether the policy file of a role checked so far was created, modified or deleted
+     * after it was loaded.
+     */
+    boolean policiesChanged() {
+        for (Map.Entry<String, String> entry : policyFingerprints.entrySet()) {
+            if (!entry.getValue().equals(fingerprint(policyFile(entry.getKey())))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Path policyFile(String role) {
+        return policyDirectory.resolve(ExpandedPolicyFiles.jsonFileName(role));
+    }
+
+    private static String fingerprint(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() + ":" + Files.size(file);
+        } catch (IOException e) {
+            return "missing";
+        }
+    }
+
+    String metrics() {
+        return "precheck_checked " + checked.get() + "\n"
+                + "precheck_guaranteed_empty " + guaranteedEmpty.get() + "\n"
+                + "precheck_short_circuited " + shortCircuited.get() + "\n"
+                + "precheck_unparsed " + unparsed.get() + "\n";
+    }
+
+    private Optional<RoleIndex> loadIndex(String role) {
+        Path file = policyFile(role);
+        // Taken before reading, so that a write during the read is seen as a change
+        policyFingerprints.put(role, fingerprint(file));
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try {
+            List<String> rules = new ObjectMapper().readValue(file.toFile(), new TypeReference<List<String>>() {});
+            RoleIndex index = new RoleIndex();
+            for (String text : rules) {
+                DatalogRule rule = DatalogRule.parse(text);
+                // Non-Boolean rules protect their answers, not the existence of their body
+                if (!rule.head.isEmpty()) {
+                    continue;
+                }
+                rule = normalisePredicates(rule);
+                if (rule == null) {
+                    // Predicates outside the policy namespace never occur in a query pattern
+                    continue;
+                }
+                for (String signature : rule.signatures()) {
+                    index.rulesBySignature.computeIfAbsent(signature, s -> new ArrayList<>()).add(rule);
+                }
+                index.rules++;
+            }
+            System.out.println("Policy pre-check: " + index.rules + " rule(s) indexed for role " + role);
+            return Optional.of(index);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("⚠️ Could not load " + file + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /** Returns the rule over local names, or {@code null} if a predicate is outside the policy namespace. */
+    private static DatalogRule normalisePredicates(DatalogRule rule) {
+        List<String> atoms = new ArrayList<>();
+        for (DatalogRule.Atom atom : rule.body) {
+            String predicate = localName(atom.predicate);
+            if (predicate == null) {
+                return null;
+            }
+            atoms.add(predicate + "(" + String.join(", ", atom.terms) + ")");
+        }
+        return DatalogRule.parse("Q() :- " + String.join(", ", atoms) + " .");
+    }
+
+    /**
+     * {@code http://hl7.org/fhir/Patient.gender}, {@code fhir:Patient.gender} and {@code Patient.gender}
+     * alike, or {@code null} for a name in another namespace, such as {@code rdfs:label} or
+     * {@code http://www.w3.org/1999/02/22-rdf-syntax-ns#value}.
+     */
+    static String localName(String predicate) {
+        String name = predicate.length() > 2 && predicate.startsWith("<") && predicate.endsWith(">")
+                ? predicate.substring(1, predicate.length() - 1) : predicate;
+        if (name.startsWith(POLICY_NAMESPACE)) {
+            name = name.substring(POLICY_NAMESPACE.length());
+        } else if (name.startsWith("fhir:")) {
+            name = name.substring("fhir:".length());
+        }
+        if (name.isEmpty() || name.indexOf(':') >= 0 || name.indexOf('/') >= 0 || name.indexOf('#') >= 0) {
+            return null;
+        }
+        return name;
+    }
+
+    private static String findContainedRule(RoleIndex index, QueryPattern pattern) {
+        DatalogRule query = DatalogRule.parse("Q() :- " + String.join(", ", pattern.atoms) + " .");
+        Map<DatalogRule, Integer> matchedSignatures = new IdentityHashMap<>();
+        for (String signature : query.signatures()) {
+            for (DatalogRule rule : index.rulesBySignature.getOrDefault(signature, Collections.emptyList())) {
+                int matched = matchedSignatures.merge(rule, 1, Integer::sum);
+                if (matched == rule.signatures().size() && query.isContainedIn(rule)) {
+                    return rule.text;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the triple patterns that every solution of {@code expr} matches to {@code pattern}.
+     */
+    private static void collectRequiredAtoms(TupleExpr expr, QueryPattern pattern, boolean inProjection) {
+        if (expr instanceof StatementPattern) {
+            addAtom((StatementPattern) expr, pattern);
+        } else if (expr instanceof Join) {
+            collectRequiredAtoms(((Join) expr).getLeftArg(), pattern, inProjection);
+            collectRequiredAtoms(((Join) expr).getRightArg(), pattern, inProjection);
+        } else if (expr instanceof LeftJoin || expr instanceof Difference) {
+            collectRequiredAtoms(((BinaryTupleOperator) expr).getLeftArg(), pattern, inProjection);
+        } else if (expr instanceof Projection) {
+            // The variables of a sub-select are scoped to it and may not be shared by name
+            if (!inProjection) {
+                collectRequiredAtoms(((Projection) expr).getArg(), pattern, true);
+            }
+        } else if (expr instanceof Group) {
+            pattern.aggregate = true;
+            collectRequiredAtoms(((Group) expr).getArg(), pattern, inProjection);
+        } else if (expr instanceof UnaryTupleOperator && !(expr instanceof Service)) {
+            // Filter, Extension, Order, Slice, Distinct, Reduced, QueryRoot
+            collectRequiredAtoms(((UnaryTupleOperator) expr).getArg(), pattern, inProjection);
+        }
+    }
+
+    /** Adds the pattern as an atom, unless its predicate or class is outside the policy namespace. */
+    private static void addAtom(StatementPattern statement, QueryPattern pattern) {
+        Var predicate = statement.getPredicateVar();
+        if (!predicate.hasValue() || !(predicate.getValue() instanceof IRI)) {
+            return;
+        }
+        if (predicate.getValue().equals(RDF.TYPE) && statement.getObjectVar().hasValue()) {
+            Value type = statement.getObjectVar().getValue();
+            String name = type instanceof IRI ? localName(type.stringValue()) : null;
+            if (name != null) {
+                pattern.atoms.add(name + "(" + term(statement.getSubjectVar(), pattern) + ")");
+            }
+        } else {
+            String name = localName(predicate.getValue().stringValue());
+            if (name != null) {
+                pattern.atoms.add(name + "(" + term(statement.getSubjectVar(), pattern) + ", "
+                        + term(statement.getObjectVar(), pattern) + ")");
+            }
+        }
+    }
+
+    private static String term(Var var, QueryPattern pattern) {
+        if (!var.hasValue()) {
+            return pattern.variableNames.computeIfAbsent(var.getName(), name -> "v" + pattern.variableNames.size());
+        }
+        Value value = var.getValue();
+        if (value instanceof Literal) {
+            return "'" + value.stringValue().replace("'", "''") + "'";
+        }
+        return "<" + value.stringValue() + ">";
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: PolicyPreCheck --role <role> [--policies <directory>] [--queries <file.md,...>]");
+        System.out.println("Lists the documented queries whose answers the role's expanded denial policies always censor.");
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        if (args.length % 2 != 0 || !options.containsKey("--role")) {
+            printUsage();
+            return;
+        }
+        PolicyPreCheck preCheck = new PolicyPreCheck(Paths.get(options.getOrDefault("--policies", ".")));
+        String role = options.get("--role");
+
+        int empty = 0;
+        int total = 0;
+        for (String file : options.getOrDefault("--queries", "Sparql queries.md,SPARQL.md").split(",")) {
+            for (QuerySuiteRunner.SuiteQuery query : QuerySuiteRunner.extractQueries(Paths.get(file.trim()))) {
+                total++;
+                Verdict verdict = preCheck.check(query.query, role);
+                if (verdict == null) {
+                    System.out.printf("%-40s not checked%n", query.name);
+                } else if (verdict.guaranteedEmpty()) {
+                    empty++;
+                    System.out.printf("%-40s empty%s, contains %s%n", query.name,
+                            verdict.canShortCircuit() ? "" : " (must still run)", verdict.rule);
+                } else {
+                    System.out.printf("%-40s may have answers%n", query.name);
+                }
+            }
+        }
+        System.out.println("\n" + empty + " of " + total + " queries are censored for role " + role);
+    }
+}
@@ -1,19 +1,29 @@
 package se.umea.mapgen;
-import com.google.gson.*;
-
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public class QueryExecutor {
 
-    public static void main(String[] args) {
+    private static final Map<String, SparqlClient> CLIENTS = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+
+        // Load-testing mode, see LoadGenerator for the options
+        if (args.length > 0 && args[0].equals("--load")) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        // Batch replay of the documented queries, see QuerySuiteRunner for the options
+        if (args.length > 0 && args[0].equals("--suite")) {
+            QuerySuiteRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
 
         Scanner scanner = new Scanner(System.in);
 
@@ -30,7 +40,7 @@ public class QueryExecutor {
         // Read multiline SPARQL query until a blank line is entered
         StringBuilder queryBuilder = new StringBuilder();
         String line;
-        while (true) {
+        while (scanner.hasNextLine()) {
             line = scanner.nextLine();
             if (line.trim().isEmpty()) {
                 break;
@@ -39,88 +49,114 @@ public class QueryExecutor {
         }
         String query = queryBuilder.toString();
 
-        String endpointUrl = "http://localhost:8080/sparql";
+        // The prompts below have defaults, which are also used when the input ends after the query
+        // Embedded mode runs Ontop inside this JVM instead of calling the endpoint
+        System.out.print("OBDA file for an embedded engine (press Enter to use the SPARQL endpoint): ");
+        String obdaFile = nextLineOrEmpty(scanner);
+        EmbeddedQueryEngine engine = null;
+        SparqlResultReader.Format format = null;
+        if (!obdaFile.isEmpty()) {
+            System.out.print("Enter path to OWL file: ");
+            String owlFile = nextLineOrEmpty(scanner);
+            System.out.print("Enter JDBC URL: ");
+            String jdbcUrl = nextLineOrEmpty(scanner);
+            System.out.print("Enter JDBC user: ");
+            String jdbcUser = nextLineOrEmpty(scanner);
+            System.out.print("Enter JDBC password: ");
+            String jdbcPassword = nextLineOrEmpty(scanner);
+            engine = new EmbeddedQueryEngine(obdaFile, owlFile, jdbcUrl, jdbcUser, jdbcPassword);
+        } else {
+            while (format == null) {
+                System.out.print("Preferred result format (json/tsv/csv, press Enter for json): ");
+                String formatInput = nextLineOrEmpty(scanner);
+                try {
+                    format = formatInput.isEmpty() ? SparqlResultReader.Format.JSON
+                            : SparqlResultReader.Format.valueOf(formatInput.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("⚠️ Unknown result format: " + formatInput);
+                }
+            }
+        }
+
+        System.out.print("Print result bindings? (y/N): ");
+        boolean printBindings = nextLineOrEmpty(scanner).equalsIgnoreCase("y");
+
+        String endpointUrl = System.getProperty("sparql.endpoint", "http://localhost:8080/sparql");
         int iterations = 3;
         double totalTimeSeconds = 0;
 
         for (int i = 0; i < iterations; i++) {
 
-            long startTime = System.currentTimeMillis();
-            String response = executePost(endpointUrl, query, username, userRole);
-            long endTime = System.currentTimeMillis();
+            // Bindings are consumed while the response streams in, so the timing covers reading the results
+            long startTime = System.nanoTime();
+            long resultCount = engine != null
+                    ? executeEmbedded(engine, query, username, userRole, printBindings ? System.out::println : null)
+                    : executePost(endpointUrl, query, username, userRole, format, printBindings ? System.out::println : null);
+            long endTime = System.nanoTime();
 
-            JsonObject jsonObject = JsonParser.parseString(response)
-                    .getAsJsonObject();
-
-            JsonArray results = jsonObject.getAsJsonObject("results")
-                    .getAsJsonArray("bindings");
-            //System.out.println(results.toString());
-            for(JsonElement j : results) {
-                System.out.println(j);
+            if (resultCount < 0) {
+                System.out.println("Query failed");
+                continue;
             }
-            System.out.format("Number of results %d\n", results.size());
+            System.out.format("Number of results %d\n", resultCount);
 
-            double elapsedSeconds = (endTime - startTime) / 1000.0;
+            double elapsedSeconds = (endTime - startTime) / 1e9;
             System.out.printf("Iteration %d: %.3f seconds%n", i + 1, elapsedSeconds);
             totalTimeSeconds += elapsedSeconds;
         }
 
         double averageTime = totalTimeSeconds / iterations;
         System.out.printf("Average execution time: %.3f seconds%n", averageTime);
-    }
-
-    private static String executePost(String targetURL, String query, String username, String userRole) {
-        HttpURLConnection connection = null;
-        try {
-            URL url = new URL(targetURL);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-
-            String urlParameters = "query=" + URLEncoder.encode(query, "UTF-8");
-            byte[] postData = urlParameters.getBytes(StandardCharsets.UTF_8);
-            //System.out.println(query);
-
-            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            connection.setRequestProperty("Content-Length", Integer.toString(postData.length));
-            connection.setRequestProperty("Accept", "application/sparql-results+json");
-
-            // Use for HTTP sent request for headers
-            connection.setRequestProperty("x-user", username);
-            connection.setRequestProperty("x-roles", userRole);
-
-            try (DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
-                wr.write(postData);
-            }
 
-            InputStream is = (connection.getResponseCode() >= 400)
-                    ? connection.getErrorStream()
-                    : connection.getInputStream();
-
-            //System.out.println("test");
-
-            //System.out.println(connection.getResponseCode());
-            BufferedReader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-            StringBuilder response = new StringBuilder();
-            String line;
-            while((line = in.readLine()) != null) {
-                response.append(line).append("\n");
-            }
-            in.close();
-
-
-
-            return response.toString();
+        if (engine != null) {
+            engine.close();
+        }
+    }
 
+    /** Reads and trims the next input line, or returns an empty answer when the input has ended. */
+    private static String nextLineOrEmpty(Scanner scanner) {
+        if (!scanner.hasNextLine()) {
+            System.out.println();
+            return "";
+        }
+        return scanner.nextLine().trim();
+    }
 
+    /**
+     * Sends the query and streams the results to {@code bindingHandler} as they arrive. Requests to
+     * the same endpoint share one pooled, keep-alive {@link SparqlClient}.
+     *
+     * @param bindingHandler receives each binding, or {@code null} to only count the results
+     * @return the number of results, or -1 if the request failed
+     */
+    static long executePost(String targetURL, String query, String username, String userRole,
+                            SparqlResultReader.Format format, Consumer<Map<String, String>> bindingHandler) {
+        SparqlClient client = CLIENTS.computeIfAbsent(targetURL, SparqlClient::new);
+        try {
+            return client.session(username, userRole).execute(query, format, bindingHandler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
 
-        } catch(Exception e) {
+    /**
+     * Runs the query on the embedded engine. Repeated queries reuse the engine's prepared form.
+     *
+     * @param bindingHandler receives each binding, or {@code null} to only count the results
+     * @return the number of results, or -1 if the query failed
+     */
+    static long executeEmbedded(EmbeddedQueryEngine engine, String query, String username, String userRole,
+                                Consumer<Map<String, String>> bindingHandler) {
+        try {
+            return engine.session(username, userRole).execute(query,
+                    bindingHandler == null ? null : bindings -> bindingHandler.accept(EmbeddedQueryEngine.toMap(bindings)));
+        } catch (Exception e) {
             e.printStackTrace();
-            return "";
-        } finally {
-            if(connection != null) {
-                connection.disconnect();
-            }
+            return -1;
         }
     }
 }
@@ -0,0 +1,312 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays the SPARQL queries documented in the Markdown workload files against the endpoint.
+ * <p>
+ * Every {@code sparql} code block is extracted together with the heading of its section and, when the
+ * section states one, its expected "Number of results". Each query is run for every role and the timings
+ * are written to a JSON file. The documented counts hold for unrestricted access, so they are only
+ * checked for the roles given with {@code --count-roles}. When a baseline from an earlier run is
+ * given, a query whose median latency grew by more than the threshold counts as a regression. The
+ * process exits with status 1 on any failed request, count mismatch or regression, so it can be used
+ * as a gate after the mappings or policies change.
+ */
+class QuerySuiteRunner {
+
+    private static final Pattern SECTION_HEADING = Pattern.compile("^##(?!#)\\s*(.*?)\\s*$");
+    private static final Pattern EXPECTED_COUNT = Pattern.compile("Number of results:\\s*([0-9][0-9,]*)");
+
+    static final class SuiteQuery {
+        final String name;
+        final String query;
+        final Long expectedCount;
+
+        SuiteQuery(String name, String query, Long expectedCount) {
+            this.name = name;
+            this.query = query;
+            this.expectedCount = expectedCount;
+        }
+    }
+
+    static final class RunResult {
+        final SuiteQuery query;
+        final String role;
+        final List<Double> timingsMillis = new ArrayList<>();
+        long resultCount = -1;
+        String error;
+
+        RunResult(SuiteQuery query, String role) {
+            this.query = query;
+            this.role = role;
+        }
+
+        String key() {
+            return query.name + " | " + role;
+        }
+
+        double medianMillis() {
+            if (timingsMillis.isEmpty()) {
+                return Double.NaN;
+            }
+            List<Double> sorted = new ArrayList<>(timingsMillis);
+            Collections.sort(sorted);
+            int middle = sorted.size() / 2;
+            return sorted.size() % 2 == 1 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+        }
+
+        boolean countMismatch(Set<String> countedRoles) {
+            return error == null && query.expectedCount != null
+                    && countedRoles.contains(role)
+                    && resultCount != query.expectedCount;
+        }
+    }
+
+    /**
+     * Extracts the {@code sparql} blocks of a Markdown file. Some files leave their last fence open, so
+     * a block also ends at the next section heading.
+     */
+    static List<SuiteQuery> extractQueries(Path markdownFile) throws IOException {
+        List<SuiteQuery> queries = new ArrayList<>();
+        String fileName = markdownFile.getFileName().toString();
+        String section = null;
+        Long expectedCount = null;
+        StringBuilder block = null;
+        int blockNumber = 0;
+
+        List<String> lines = Files.readAllLines(markdownFile, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            Matcher heading = SECTION_HEADING.matcher(line);
+            String trimmed = line.trim();
+            if (block != null && (trimmed.startsWith("```") || heading.matches())) {
+                blockNumber++;
+                queries.add(new SuiteQuery(queryName(fileName, section, blockNumber), block.toString().trim(), expectedCount));
+                block = null;
+                if (trimmed.startsWith("```")) {
+                    continue;
+                }
+            }
+            if (block != null) {
+                block.append(line).append('\n');
+            } else if (heading.matches()) {
+                section = heading.group(1);
+                expectedCount = null;
+            } else if (trimmed.startsWith("```")) {
+                if (trimmed.substring(3).trim().equalsIgnoreCase("sparql")) {
+                    block = new StringBuilder();
+                }
+            } else {
+                Matcher count = EXPECTED_COUNT.matcher(line);
+                if (count.find()) {
+                    expectedCount = Long.parseLong(count.group(1).replace(",", ""));
+                }
+            }
+        }
+        if (block != null) {
+            blockNumber++;
+            queries.add(new SuiteQuery(queryName(fileName, section, blockNumber), block.toString().trim(), expectedCount));
+        }
+        return queries;
+    }
+
+    private static String queryName(String fileName, String section, int blockNumber) {
+        if (section == null || section.isEmpty()) {
+            return fileName + " #" + blockNumber;
+        }
+        int colon = section.indexOf(':');
+        return fileName + " " + (colon > 0 ? section.substring(0, colon).trim() : section);
+    }
+
+    /**
+     * Runs every query for every role: {@code warmup} unrecorded executions followed by
+     * {@code iterations} timed ones.
+     */
+    static List<RunResult> run(SparqlClient client, String user, List<SuiteQuery> queries, List<String> roles,
+                               int warmup, int iterations) throws InterruptedException {
+        List<RunResult> results = new ArrayList<>();
+        for (SuiteQuery query : queries) {
+            for (String role : roles) {
+                RunResult result = new RunResult(query, role);
+                SparqlClient.Session session = client.session(user, role);
+                System.out.println("Running " + result.key());
+                try {
+                    for (int i = 0; i < warmup; i++) {
+                        session.execute(query.query, SparqlResultReader.Format.JSON, null);
+                    }
+                    for (int i = 0; i < iterations; i++) {
+                        long start = System.nanoTime();
+                        result.resultCount = session.execute(query.query, SparqlResultReader.Format.JSON, null);
+                        result.timingsMillis.add((System.nanoTime() - start) / 1e6);
+                    }
+                } catch (IOException e) {
+                    result.error = e.getMessage();
+                }
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    static void writeResults(List<RunResult> results, String endpointUrl, File outputFile) throws IOException {
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("timestamp", Instant.now().toString());
+        root.put("endpoint", endpointUrl);
+        List<Map<String, Object>> runs = new ArrayList<>();
+        for (RunResult result : results) {
+            Map<String, Object> run = new LinkedHashMap<>();
+            run.put("query", result.query.name);
+            run.put("role", result.role);
+            run.put("expectedCount", result.query.expectedCount);
+            run.put("resultCount", result.resultCount);
+            run.put("medianMs", result.timingsMillis.isEmpty() ? null : result.medianMillis());
+            run.put("timingsMs", result.timingsMillis);
+            if (result.error != null) {
+                run.put("error", result.error);
+            }
+            runs.add(run);
+        }
+        root.put("runs", runs);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+        objectMapper.writeValue(outputFile, root);
+    }
+
+    /**
+     * Reads the median latency of each query and role from an earlier results file.
+     */
+    static Map<String, Double> readBaseline(File baselineFile) throws IOException {
+        Map<String, Double> medians = new HashMap<>();
+        JsonNode root = new ObjectMapper().readTree(baselineFile);
+        for (JsonNode run : root.path("runs")) {
+            if (run.hasNonNull("medianMs")) {
+                medians.put(run.get("query").asText() + " | " + run.get("role").asText(), run.get("medianMs").asDouble());
+            }
+        }
+        return medians;
+    }
+
+    /**
+     * Prints one line per run and returns how many runs failed the gate.
+     *
+     * @param threshold allowed relative slowdown, e.g. 0.2 for 20%
+     * @param minDeltaMillis slowdowns smaller than this are ignored as noise
+     */
+    static int report(List<RunResult> results, Map<String, Double> baseline, double threshold,
+                      double minDeltaMillis, Set<String> countedRoles) {
+        int failures = 0;
+        System.out.printf("%n%-40s %-12s %10s %10s %11s %11s  %s%n",
+                "Query", "Role", "Expected", "Results", "Median ms", "Baseline ms", "Status");
+        for (RunResult result : results) {
+            double median = result.medianMillis();
+            Double baselineMedian = baseline.get(result.key());
+            String status = "OK";
+            if (result.error != null) {
+                status = "ERROR " + result.error;
+            } else if (result.countMismatch(countedRoles)) {
+                status = "COUNT MISMATCH";
+            } else if (baselineMedian != null && median > baselineMedian * (1 + threshold)
+                    && median - baselineMedian > minDeltaMillis) {
+                status = String.format("REGRESSION %+.0f%%", (median / baselineMedian - 1) * 100);
+            }
+            if (!status.equals("OK")) {
+                failures++;
+            }
+            System.out.printf("%-40s %-12s %10s %10d %11.2f %11s  %s%n",
+                    result.query.name, result.role,
+                    result.query.expectedCount == null ? "-" : result.query.expectedCount,
+                    result.resultCount, median,
+                    baselineMedian == null ? "-" : String.format("%.2f", baselineMedian), status);
+        }
+        return failures;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: QuerySuiteRunner --roles <role,...> [--queries <file.md,...>]");
+        System.out.println("         [--endpoint <url> | --stub] [--user <name>] [--warmup <n>] [--iterations <n>]");
+        System.out.println("         [--output <file>] [--baseline <file>] [--threshold <fraction>] [--min-delta-ms <ms>]");
+        System.out.println("         [--count-roles <role,...>]");
+        System.out.println("Expected result counts are only checked for the --count-roles (none by default).");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (name.equals("--stub")) {
+                options.put(name, "true");
+            } else if (name.startsWith("--") && i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        if (!options.containsKey("--roles")) {
+            printUsage();
+            return;
+        }
+
+        List<SuiteQuery> queries = new ArrayList<>();
+        for (String file : options.getOrDefault("--queries", "Sparql queries.md,SPARQL.md").split(",")) {
+            List<SuiteQuery> extracted = extractQueries(Paths.get(file.trim()));
+            System.out.println("Extracted " + extracted.size() + " queries from " + file.trim());
+            queries.addAll(extracted);
+        }
+        List<String> roles = splitList(options.get("--roles"));
+        Set<String> countedRoles = new HashSet<>(splitList(options.getOrDefault("--count-roles", "")));
+        int warmup = Integer.parseInt(options.getOrDefault("--warmup", "1"));
+        int iterations = Integer.parseInt(options.getOrDefault("--iterations", "3"));
+        double threshold = Double.parseDouble(options.getOrDefault("--threshold", "0.2"));
+        double minDeltaMillis = Double.parseDouble(options.getOrDefault("--min-delta-ms", "5"));
+        File outputFile = new File(options.getOrDefault("--output", "query_suite_results.json"));
+
+        Map<String, Double> baseline = options.containsKey("--baseline")
+                ? readBaseline(new File(options.get("--baseline")))
+                : Collections.emptyMap();
+
+        StubSparqlEndpoint stub = options.containsKey("--stub") ? new StubSparqlEndpoint(0, 100, 5) : null;
+        String endpointUrl = stub != null ? stub.url() : options.getOrDefault("--endpoint", "http://localhost:8080/sparql");
+        int failures;
+        try (SparqlClient client = new SparqlClient(endpointUrl)) {
+            List<RunResult> results = run(client, options.getOrDefault("--user", "suite"), queries, roles, warmup, iterations);
+            writeResults(results, endpointUrl, outputFile);
+            System.out.println("Timings written to " + outputFile);
+            failures = report(results, baseline, threshold, minDeltaMillis, countedRoles);
+        } finally {
+            if (stub != null) {
+                stub.close();
+            }
+        }
+
+        if (failures > 0) {
+            System.out.println("\n❌ " + failures + " of " + queries.size() * roles.size() + " runs failed");
+            System.exit(1);
+        }
+        System.out.println("\n✅ All runs passed");
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+}
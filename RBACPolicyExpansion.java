@@ -1,5 +1,8 @@
 package se.umea.mapgen;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
@@ -26,17 +29,29 @@ import se.umea.mapgen.reformulation.OntopReformulationResult;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 
 public class PolicyExpansion {
 
+    /** Files written for each role: the JSON array of rules, the {@link BinaryPolicyFile}, or both. */
+    public enum OutputFormat {
+        JSON, BINARY, BOTH;
+
+        boolean writesJson() {
+            return this != BINARY;
+        }
+
+        boolean writesBinary() {
+            return this != JSON;
+        }
+    }
+
     public static void main(String[] args) throws Throwable {
         Scanner scanner = new Scanner(System.in);
         
@@ -56,12 +71,45 @@ public class PolicyExpansion {
         
         System.out.print("Enter path to policy configuration file (format: policy_file_path=role): ");
         String policyConfigFile = scanner.nextLine().trim();
+
+        int defaultParallelism = Runtime.getRuntime().availableProcessors();
+        System.out.print("Enter number of worker threads (press Enter for " + defaultParallelism + "): ");
+        String threadsInput = scanner.nextLine().trim();
+        int parallelism = threadsInput.isEmpty() ? defaultParallelism : Integer.parseInt(threadsInput);
+
+        System.out.print("Enter reformulation cache directory (press Enter for " + ReformulationCache.DEFAULT_DIRECTORY + ", '-' to disable): ");
+        String cacheInput = scanner.nextLine().trim();
+        String cacheDirectory = cacheInput.isEmpty() ? ReformulationCache.DEFAULT_DIRECTORY : cacheInput.equals("-") ? null : cacheInput;
+
+        OutputFormat format = null;
+        while (format == null) {
+            System.out.print("Enter output format: json, binary or both (press Enter for json): ");
+            String formatInput = scanner.nextLine().trim();
+            try {
+                format = formatInput.isEmpty() ? OutputFormat.JSON : OutputFormat.valueOf(formatInput.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.out.println("⚠️ Unknown output format: " + formatInput);
+            }
+        }
         
-        performReformulation(obdaFile, owlFile, jsonFile, policyConfigFile);
+        performReformulation(obdaFile, owlFile, jsonFile, policyConfigFile, parallelism, cacheDirectory, format);
         scanner.close();
     }
 
     public static void performReformulation(String obdaFile, String owlFile, String jsonFile, String policyConfigFile) throws Throwable {
+        performReformulation(obdaFile, owlFile, jsonFile, policyConfigFile, Runtime.getRuntime().availableProcessors(), ReformulationCache.DEFAULT_DIRECTORY);
+    }
+
+    /**
+     * @param cacheDirectory directory of the persistent reformulation cache, or {@code null} to expand every rule from scratch
+     */
+    public static void performReformulation(String obdaFile, String owlFile, String jsonFile, String policyConfigFile,
+                                            int parallelism, String cacheDirectory) throws Throwable {
+        performReformulation(obdaFile, owlFile, jsonFile, policyConfigFile, parallelism, cacheDirectory, OutputFormat.JSON);
+    }
+
+    public static void performReformulation(String obdaFile, String owlFile, String jsonFile, String policyConfigFile,
+                                            int parallelism, String cacheDirectory, OutputFormat format) throws Throwable {
         // Load policy configuration
         List<PolicyConfig> policyConfigs = readPolicyConfig(policyConfigFile);
         if (policyConfigs.isEmpty()) {
@@ -69,64 +117,194 @@ public class PolicyExpansion {
             return;
         }
 
+        CompilationMetrics metrics = new CompilationMetrics("PolicyExpansion");
+
         // Load the ontology
         OWLOntologyManager ontologyManager = OWLManager.createOWLOntologyManager();
         OWLOntology ontology;
-        try (InputStream in = Files.newInputStream(Paths.get(owlFile))) {
+        try (CompilationMetrics.Timer ignored = metrics.time("ontologyLoad", owlFile);
+             InputStream in = Files.newInputStream(Paths.get(owlFile))) {
             ontology = ontologyManager.loadOntologyFromOntologyDocument(in);
         }
 
         // Set up properties for Ontop
-        Properties properties = new Properties();
-        properties.setProperty("jdbc.url", "jdbc:postgresql://localhost:5432/dummy");
-        properties.setProperty("ontop.existentialReasoning", "true");
-        properties.setProperty("it.unibz.inf.ontop.iq.planner.QueryPlanner", "se.umea.mapgen.reformulation.OntopUnionLifterPlanner");
+        Properties properties = reformulationProperties();
 
         // Initialize Ontop functionality
         CharSource mappingSource = MoreFiles.asCharSource(Paths.get(obdaFile), Charsets.UTF_8);
         CharSource ontologySource = MoreFiles.asCharSource(Paths.get(owlFile), Charsets.UTF_8);
         CharSource metadataSource = MoreFiles.asCharSource(Paths.get(jsonFile), Charsets.UTF_8);
-        OntopReformulationAPI rewriter = new OntopReformulationAPI(properties, mappingSource, ontologySource, metadataSource);
+        ReformulationCache cache = cacheDirectory == null ? null : new ReformulationCache(Paths.get(cacheDirectory),
+                ReformulationCache.DEFAULT_MAX_BYTES, mappingSource, ontologySource, metadataSource, properties);
 
-        // Process each policy file
+        // Load every policy up front, so that all (role, rule) pairs can be expanded in parallel
+        List<List<OntologyConjunctiveQuery>> policyRulesPerRole = new ArrayList<>();
         for (PolicyConfig config : policyConfigs) {
-            String policyFile = config.filePath;
+            try (CompilationMetrics.Timer ignored = metrics.time("policyLoad", config.filePath)) {
+                policyRulesPerRole.add(loadPolicyRules(config.filePath, ontology));
+            }
+        }
+
+        List<ExpandedRuleSet> expandedPolicyRulesPerRole;
+        try (ParallelPolicyExpander expander = new ParallelPolicyExpander(ontology,
+                () -> new OntopReformulationAPI(properties, mappingSource, ontologySource, metadataSource), parallelism,
+                cache, metrics)) {
+            expandedPolicyRulesPerRole = expander.expandAll(policyRulesPerRole);
+        }
+        if (cache != null) {
+            cache.printStatistics();
+            cache.saveStatistics();
+        }
+
+        // Write the results in configuration order
+        for (int i = 0; i < policyConfigs.size(); i++) {
+            PolicyConfig config = policyConfigs.get(i);
             String role = config.role;
             
             System.out.println("\nProcessing policy for role: " + role);
-            System.out.println("Policy file: " + policyFile);
-            
-            List<OntologyConjunctiveQuery> policyRules = loadPolicyFromJson(policyFile, ontology);
-            List<OntologyConjunctiveQuery> expandedPolicyRules = new ArrayList<>();
-
-            // Expand each policy rule
-            for (OntologyConjunctiveQuery policyRule : policyRules) {
-                String policyRuleAsSparqlQuery = policyRule.toSparql();
+            System.out.println("Policy file: " + config.filePath);
+            for (OntologyConjunctiveQuery policyRule : policyRulesPerRole.get(i)) {
                 System.out.println("  - Datalog rule: " + policyRule);
-                
-                OntopReformulationResult result = rewriter.reformulate(policyRuleAsSparqlQuery);
-                IQ iq = result.getReformulatedQueryIQ();
-                
-                List<OntologyConjunctiveQuery> queries = Lists.newArrayList();
-                generateOntologyConjunctiveQueries(iq.getTree(), ontology, queries);
-                expandedPolicyRules.addAll(queries);
             }
 
-            // Convert expanded rules to strings
-            List<String> rulesAsStrings = expandedPolicyRules.stream()
-                .map(OntologyConjunctiveQuery::toString)
-                .collect(Collectors.toList());
-
             // Write to role-specific output file
-            String outputFileName = "expanded_policy_" + sanitizeRoleName(role) + ".json";
-            writeExpandedPolicyToJson(rulesAsStrings, outputFileName);
+            ExpandedRuleSet expanded = expandedPolicyRulesPerRole.get(i);
+            String outputFileName = ExpandedPolicyFiles.jsonFileName(role);
+            PolicyMinimizer.Result<String> minimized;
+            try {
+                minimized = minimizeAndWrite(expanded, role, Paths.get(outputFileName), format, metrics);
+            } catch (IOException e) {
+                System.err.println("Error writing expanded policy: " + e.getMessage());
+                continue;
+            }
             
             System.out.println("✅ Successfully created expanded policy for role: " + role);
-            System.out.println("   Output file: " + outputFileName);
-            System.out.println("   Rules expanded: " + rulesAsStrings.size());
+            if (format.writesJson()) {
+                System.out.println("   Output file: " + outputFileName);
+            }
+            if (format.writesBinary()) {
+                System.out.println("   Binary file: " + BinaryPolicyFile.binaryFileFor(Paths.get(outputFileName)));
+            }
+            System.out.println("   Rules expanded: " + minimized.rules.size());
+            System.out.println("   Duplicates dropped during expansion: " + expanded.duplicates() + " of " + expanded.produced());
+            System.out.println("   Minimisation: " + minimized.summary());
+        }
+
+        Path metricsFile = Paths.get("expansion_metrics.json");
+        metrics.write(metricsFile);
+        System.out.println("\nTimings and counts written to " + metricsFile);
+    }
+
+    /**
+     * Drops the expanded rules contained in a more general rule and writes the rest to
+     * {@code outputFile}, and in binary form next to it, depending on {@code format}. Duplicates were
+     * already dropped during expansion.
+     */
+    static PolicyMinimizer.Result<String> minimizeAndWrite(ExpandedRuleSet expanded, String role, Path outputFile,
+                                                          OutputFormat format, CompilationMetrics metrics) throws IOException {
+        PolicyMinimizer.Result<String> minimized;
+        try (CompilationMetrics.Timer ignored = metrics.time("minimize", role)) {
+            minimized = PolicyMinimizer.minimize(expanded.rules(), rule -> rule);
+        }
+        if (format.writesJson()) {
+            try (CompilationMetrics.Timer ignored = metrics.time("jsonWrite", outputFile.toString())) {
+                writeExpandedPolicyToJson(minimized.rules, outputFile);
+            }
+        }
+        if (format.writesBinary()) {
+            Path binaryFile = BinaryPolicyFile.binaryFileFor(outputFile);
+            try (CompilationMetrics.Timer ignored = metrics.time("binaryWrite", binaryFile.toString())) {
+                BinaryPolicyFile.write(minimized.rules, binaryFile);
+            }
+        }
+        metrics.count("writtenRules", minimized.rules.size());
+        return minimized;
+    }
+
+    /**
+     * Ontop settings for reformulating policy rules: existential reasoning on, unions lifted to the
+     * top of the IQ, and a placeholder database that is never connected to.
+     */
+    static Properties reformulationProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("jdbc.url", "jdbc:postgresql://localhost:5432/dummy");
+        properties.setProperty("ontop.existentialReasoning", "true");
+        properties.setProperty("it.unibz.inf.ontop.iq.planner.QueryPlanner", "se.umea.mapgen.reformulation.OntopUnionLifterPlanner");
+        return properties;
+    }
+
+    /** Reads the Datalog rules of a policy JSON file against the ontology. */
+    static List<OntologyConjunctiveQuery> loadPolicyRules(String policyFile, OWLOntology ontology) throws Exception {
+        return loadPolicyFromJson(policyFile, ontology);
+    }
+
+    static ExpandedRuleSet expandRule(OntopReformulationAPI rewriter, OntologyConjunctiveQuery policyRule,
+                                      OWLOntology ontology, CompilationMetrics metrics) throws Exception {
+        String policyRuleAsSparqlQuery = policyRule.toSparql();
+
+        long start = System.nanoTime();
+        OntopReformulationResult result = rewriter.reformulate(policyRuleAsSparqlQuery);
+        IQ iq = result.getReformulatedQueryIQ();
+        long reformulated = System.nanoTime();
+
+        ExpandedRuleSet queries = new ExpandedRuleSet();
+        generateDistinctConjunctiveQueries(iq.getTree(), ontology, queries);
+        long converted = System.nanoTime();
+
+        int[] statistics = treeStatistics(iq.getTree());
+        metrics.recordRule(policyRule.toString(), false, reformulated - start, converted - reformulated,
+                statistics[0], statistics[1], queries.size());
+        metrics.count("duplicateExpansions", queries.duplicates());
+        return queries;
+    }
+
+    /**
+     * Converts the reformulated tree branch by branch. The union planner lifts the union to the root,
+     * so each of its children is converted on its own and reduced to its distinct rules before the next
+     * one, instead of materialising the conjunctive queries of the whole union at once.
+     */
+    private static void generateDistinctConjunctiveQueries(IQTree tree, OWLOntology ontology, ExpandedRuleSet into) throws Exception {
+        List<IQTree> branches = tree.getRootNode() instanceof UnionNode ? tree.getChildren() : Collections.singletonList(tree);
+        List<OntologyConjunctiveQuery> queries = new ArrayList<>();
+        for (IQTree branch : branches) {
+            generateOntologyConjunctiveQueries(branch, ontology, queries);
+            for (OntologyConjunctiveQuery query : queries) {
+                into.add(query.toString());
+            }
+            queries.clear();
         }
     }
 
+    /**
+     * Returns the number of nodes of the tree and the largest number of branches of a union in it.
+     */
+    private static int[] treeStatistics(IQTree tree) {
+        int nodes = 0;
+        int unionWidth = 0;
+        Deque<IQTree> pending = new ArrayDeque<>();
+        pending.push(tree);
+        while (!pending.isEmpty()) {
+            IQTree next = pending.pop();
+            nodes++;
+            if (next.getRootNode() instanceof UnionNode) {
+                unionWidth = Math.max(unionWidth, next.getChildren().size());
+            }
+            next.getChildren().forEach(pending::push);
+        }
+        return new int[]{nodes, unionWidth};
+    }
+
+    /** Returns the distinct rules of a cached expansion, or {@code null} on a miss. */
+    static ExpandedRuleSet loadCachedExpansion(ReformulationCache cache, String sparql) throws IOException {
+        List<String> cached = cache.lookup(sparql);
+        if (cached == null) {
+            return null;
+        }
+        ExpandedRuleSet rules = new ExpandedRuleSet();
+        rules.addAll(cached);
+        return rules;
+    }
+
     private static List<PolicyConfig> readPolicyConfig(String configPath) throws IOException {
         List<PolicyConfig> configs = new ArrayList<>();
         List<String> lines = Files.readAllLines(Paths.get(configPath));
@@ -155,22 +333,21 @@ public class PolicyExpansion {
         return configs;
     }
 
-    private static String sanitizeRoleName(String role) {
-        // Replace spaces and special characters to make a valid filename
-        return role.replaceAll("\\s+", "_")
-                   .replaceAll("[^a-zA-Z0-9_]", "");
-    }
-
-    private static void writeExpandedPolicyToJson(List<String> rules, String outputFile) {
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+    /**
+     * Writes the rules one by one through a JSON generator, with the same layout the object mapper
+     * produced, so that no document tree of the whole policy is built.
+     */
+    private static void writeExpandedPolicyToJson(Iterable<String> rules, Path outputFile) throws IOException {
         DefaultPrettyPrinter prettyPrinter = new DefaultPrettyPrinter();
         prettyPrinter.indentArraysWith(DefaultIndenter.SYSTEM_LINEFEED_INSTANCE);
 
-        try {
-            objectMapper.writer(prettyPrinter).writeValue(new File(outputFile), rules);
-        } catch (IOException e) {
-            System.err.println("Error writing expanded policy: " + e.getMessage());
+        try (JsonGenerator generator = new JsonFactory().createGenerator(outputFile.toFile(), JsonEncoding.UTF8)) {
+            generator.setPrettyPrinter(prettyPrinter);
+            generator.writeStartArray();
+            for (String rule : rules) {
+                generator.writeString(rule);
+            }
+            generator.writeEndArray();
         }
     }
 
@@ -0,0 +1,226 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharSource;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persistent, content-addressed cache of policy rule expansions.
+ * <p>
+ * An entry is keyed by a SHA-256 hash over the mapping, ontology and metadata sources, the Ontop
+ * properties and the SPARQL form of a policy rule, so any change to one of the inputs yields a new key.
+ * Each entry is a JSON array of expanded Datalog rules, in the same format as a policy file.
+ * Least recently used entries are evicted once the cache grows beyond its size bound.
+ */
+class ReformulationCache {
+
+    static final String DEFAULT_DIRECTORY = ".reformulation-cache";
+    static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    // Bump whenever the entry format or the expansion semantics change
+    private static final String FORMAT_VERSION = "1";
+    private static final String ENTRY_SUFFIX = ".json";
+    private static final String STATS_FILE = "stats.properties";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final String contextDigest;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long currentBytes;
+
+    ReformulationCache(Path directory, long maxBytes, CharSource mappingSource, CharSource ontologySource,
+                       CharSource metadataSource, Properties properties) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.contextDigest = digestContext(mappingSource, ontologySource, metadataSource, properties);
+        Files.createDirectories(directory);
+        this.currentBytes = listEntries().stream().mapToLong(ReformulationCache::sizeOf).sum();
+    }
+
+    private static String digestContext(CharSource mappingSource, CharSource ontologySource,
+                                        CharSource metadataSource, Properties properties) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(FORMAT_VERSION, Charsets.UTF_8);
+        for (CharSource source : Arrays.asList(mappingSource, ontologySource, metadataSource)) {
+            hasher.putBytes(source.asByteSource(Charsets.UTF_8).hash(Hashing.sha256()).asBytes());
+        }
+        for (String name : new TreeSet<>(properties.stringPropertyNames())) {
+            hasher.putString(name, Charsets.UTF_8).putChar('=')
+                  .putString(properties.getProperty(name), Charsets.UTF_8).putChar('\n');
+        }
+        return hasher.hash().toString();
+    }
+
+    String key(String sparql) {
+        return Hashing.sha256().newHasher()
+                .putString(contextDigest, Charsets.UTF_8)
+                .putString(sparql, Charsets.UTF_8)
+                .hash().toString();
+    }
+
+    /**
+     * Returns the expanded rules cached for the given rule, or {@code null} on a miss. The entry is
+     * read here rather than by the caller, so that an entry evicted by a concurrent store is a miss
+     * and not an error.
+     */
+    List<String> lookup(String sparql) throws IOException {
+        Path entry = directory.resolve(key(sparql) + ENTRY_SUFFIX);
+        String[] expandedRules;
+        try (InputStream in = Files.newInputStream(entry)) {
+            expandedRules = objectMapper.readValue(in, String[].class);
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            // The modification time doubles as the last access time for LRU eviction
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Evicted since it was read; the rules are still the expansion of this rule
+        }
+        hits.incrementAndGet();
+        return Arrays.asList(expandedRules);
+    }
+
+    void store(String sparql, List<String> expandedRules) throws IOException {
+        Path entry = directory.resolve(key(sparql) + ENTRY_SUFFIX);
+        Path tmp = Files.createTempFile(directory, "entry", ".tmp");
+        objectMapper.writeValue(tmp.toFile(), expandedRules);
+        long size = Files.size(tmp);
+        synchronized (this) {
+            long replaced = Files.exists(entry) ? sizeOf(entry) : 0;
+            Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            currentBytes += size - replaced;
+            if (currentBytes > maxBytes) {
+                evict();
+            }
+        }
+    }
+
+    private void evict() throws IOException {
+        List<Path> entries = listEntries();
+        entries.sort(Comparator.comparingLong(ReformulationCache::lastModified));
+        for (Path entry : entries) {
+            if (currentBytes <= maxBytes) {
+                break;
+            }
+            long size = sizeOf(entry);
+            if (Files.deleteIfExists(entry)) {
+                currentBytes -= size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(ENTRY_SUFFIX))
+                        .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Adds this run's statistics to the cumulative statistics kept in the cache directory.
+     */
+    synchronized void saveStatistics() throws IOException {
+        Properties stats = loadStatistics(directory);
+        add(stats, "hits", hits.get());
+        add(stats, "misses", misses.get());
+        add(stats, "evictions", evictions.get());
+        try (OutputStream out = Files.newOutputStream(directory.resolve(STATS_FILE))) {
+            stats.store(out, "Reformulation cache statistics");
+        }
+    }
+
+    void printStatistics() {
+        long lookups = hits.get() + misses.get();
+        System.out.printf("Reformulation cache: %d hits, %d misses (%.1f%% hit rate), %d evictions%n",
+                hits.get(), misses.get(), lookups == 0 ? 0.0 : 100.0 * hits.get() / lookups, evictions.get());
+    }
+
+    private static Properties loadStatistics(Path directory) throws IOException {
+        Properties stats = new Properties();
+        Path file = directory.resolve(STATS_FILE);
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                stats.load(in);
+            }
+        }
+        return stats;
+    }
+
+    private static void add(Properties stats, String name, long value) {
+        stats.setProperty(name, Long.toString(Long.parseLong(stats.getProperty(name, "0")) + value));
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Prints the size and the cumulative hit/miss statistics of a cache directory.
+     */
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : DEFAULT_DIRECTORY);
+        if (!Files.isDirectory(directory)) {
+            System.out.println("No reformulation cache found at: " + directory);
+            return;
+        }
+
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(directory)) {
+            entries = files.filter(p -> p.getFileName().toString().endsWith(ENTRY_SUFFIX)).collect(Collectors.toList());
+        }
+        long bytes = entries.stream().mapToLong(ReformulationCache::sizeOf).sum();
+        Properties stats = loadStatistics(directory);
+        long hits = Long.parseLong(stats.getProperty("hits", "0"));
+        long misses = Long.parseLong(stats.getProperty("misses", "0"));
+        long lookups = hits + misses;
+
+        System.out.println("Cache directory: " + directory.toAbsolutePath());
+        System.out.println("Entries:         " + entries.size());
+        System.out.printf("Size:            %.1f MiB%n", bytes / (1024.0 * 1024.0));
+        System.out.println("Hits:            " + hits);
+        System.out.println("Misses:          " + misses);
+        System.out.printf("Hit rate:        %.1f%%%n", lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+        System.out.println("Evictions:       " + stats.getProperty("evictions", "0"));
+    }
+}
@@ -0,0 +1,156 @@
+package se.umea.mapgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Reusable client for the RBAC SPARQL endpoint.
+ * <p>
+ * One {@link HttpClient} is shared by all requests, so connections are pooled and kept alive (or
+ * multiplexed when HTTP/2 is enabled) instead of being opened per query. The {@code x-user} and
+ * {@code x-roles} headers are prepared once per {@link Session}. Results are streamed through
+ * {@link SparqlResultReader}.
+ */
+class SparqlClient implements AutoCloseable {
+
+    private final URI endpoint;
+    private final HttpClient httpClient;
+    private final Duration requestTimeout;
+    private final ExecutorService executor;
+
+    SparqlClient(String endpointUrl) {
+        this(endpointUrl, HttpClient.Version.HTTP_1_1, Duration.ofSeconds(10), null);
+    }
+
+    /**
+     * @param requestTimeout time allowed for the response headers to arrive, or {@code null} for no limit
+     */
+    SparqlClient(String endpointUrl, HttpClient.Version version, Duration connectTimeout, Duration requestTimeout) {
+        this.endpoint = URI.create(endpointUrl);
+        this.requestTimeout = requestTimeout;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "sparql-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpClient = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+    }
+
+    Session session(String username, String userRoles) {
+        return new Session(username, userRoles);
+    }
+
+    /**
+     * Requests on behalf of one user and role set.
+     */
+    final class Session {
+        private final String[] headers;
+
+        private Session(String username, String userRoles) {
+            this.headers = new String[]{
+                    "Content-Type", "application/x-www-form-urlencoded",
+                    "x-user", username,
+                    "x-roles", userRoles
+            };
+        }
+
+        /**
+         * Runs the query and streams its results to {@code bindingHandler}.
+         *
+         * @param bindingHandler receives each binding, or {@code null} to only count the results
+         * @return the number of results
+         */
+        long execute(String query, SparqlResultReader.Format format,
+                     Consumer<Map<String, String>> bindingHandler) throws IOException, InterruptedException {
+            HttpResponse<InputStream> response = httpClient.send(request(query, format), HttpResponse.BodyHandlers.ofInputStream());
+            return readResults(response, bindingHandler);
+        }
+
+        CompletableFuture<Long> executeAsync(String query, SparqlResultReader.Format format,
+                                             Consumer<Map<String, String>> bindingHandler) {
+            return httpClient.sendAsync(request(query, format), HttpResponse.BodyHandlers.ofInputStream())
+                    .thenApplyAsync(response -> {
+                        try {
+                            return readResults(response, bindingHandler);
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, executor);
+        }
+
+        /**
+         * Sends all queries over the shared connections with at most {@code maxInFlight} outstanding
+         * requests, and returns their result counts in input order.
+         */
+        List<Long> executeBatch(List<String> queries, SparqlResultReader.Format format, int maxInFlight)
+                throws IOException, InterruptedException {
+            Semaphore inFlight = new Semaphore(Math.max(1, maxInFlight));
+            List<CompletableFuture<Long>> futures = new ArrayList<>();
+            for (String query : queries) {
+                inFlight.acquire();
+                futures.add(executeAsync(query, format, null).whenComplete((count, error) -> inFlight.release()));
+            }
+
+            List<Long> counts = new ArrayList<>();
+            for (CompletableFuture<Long> future : futures) {
+                try {
+                    counts.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            }
+            return counts;
+        }
+
+        private HttpRequest request(String query, SparqlResultReader.Format format) {
+            String body = "query=" + URLEncoder.encode(query, StandardCharsets.UTF_8);
+            HttpRequest.Builder builder = HttpRequest.newBuilder(endpoint)
+                    .headers(headers)
+                    .header("Accept", format.acceptHeader())
+                    .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+            if (requestTimeout != null) {
+                builder.timeout(requestTimeout);
+            }
+            return builder.build();
+        }
+    }
+
+    private static long readResults(HttpResponse<InputStream> response,
+                                    Consumer<Map<String, String>> bindingHandler) throws IOException {
+        try (InputStream body = response.body()) {
+            if (response.statusCode() >= 400) {
+                throw new IOException("HTTP " + response.statusCode() + ": "
+                        + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            SparqlResultReader.Format format = SparqlResultReader.Format.fromContentType(
+                    response.headers().firstValue("Content-Type").orElse(null));
+            long count = SparqlResultReader.read(body, format, bindingHandler);
+            // Drain what the parser left behind, so that the connection can be reused
+            body.transferTo(OutputStream.nullOutputStream());
+            return count;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
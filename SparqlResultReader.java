@@ -0,0 +1,207 @@
+package se.umea.mapgen;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Streaming reader for SPARQL SELECT results in the JSON, TSV and CSV formats.
+ * <p>
+ * Bindings are handed to a callback one at a time as they are parsed, so memory use does not depend
+ * on the number of results. With a {@code null} callback the results are only counted, and JSON
+ * bindings are skipped without being materialised.
+ */
+class SparqlResultReader {
+
+    enum Format {
+        JSON("application/sparql-results+json"),
+        TSV("text/tab-separated-values"),
+        CSV("text/csv");
+
+        final String mediaType;
+
+        Format(String mediaType) {
+            this.mediaType = mediaType;
+        }
+
+        /** Accept header preferring this format and falling back to the others. */
+        String acceptHeader() {
+            StringBuilder accept = new StringBuilder(mediaType);
+            double quality = 0.9;
+            for (Format other : values()) {
+                if (other != this) {
+                    accept.append(", ").append(other.mediaType).append(";q=").append(quality);
+                    quality -= 0.1;
+                }
+            }
+            return accept.toString();
+        }
+
+        static Format fromContentType(String contentType) {
+            if (contentType != null) {
+                String mediaType = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+                for (Format format : values()) {
+                    if (format.mediaType.equals(mediaType)) {
+                        return format;
+                    }
+                }
+            }
+            return JSON;
+        }
+    }
+
+    /**
+     * Reads all bindings from {@code in} and returns how many there were.
+     *
+     * @param handler receives each binding as a variable-to-value map, or {@code null} to only count
+     */
+    static long read(InputStream in, Format format, Consumer<Map<String, String>> handler) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        switch (format) {
+            case TSV:
+                return readDelimited(reader, '\t', handler);
+            case CSV:
+                return readDelimited(reader, ',', handler);
+            default:
+                return readJson(reader, handler);
+        }
+    }
+
+    private static long readJson(Reader in, Consumer<Map<String, String>> handler) throws IOException {
+        long count = 0;
+        // Not closed here: the caller owns the stream and may still need to drain it
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("results")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("bindings")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            if (handler == null) {
+                                reader.skipValue();
+                            } else {
+                                handler.accept(readJsonBinding(reader));
+                            }
+                            count++;
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("boolean") && reader.peek() == JsonToken.BOOLEAN) {
+                // ASK query
+                count += reader.nextBoolean() ? 1 : 0;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return count;
+    }
+
+    private static Map<String, String> readJsonBinding(JsonReader reader) throws IOException {
+        Map<String, String> binding = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String variable = reader.nextName();
+            String value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("value")) {
+                    value = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            binding.put(variable, value);
+        }
+        reader.endObject();
+        return binding;
+    }
+
+    private static long readDelimited(Reader reader, char delimiter, Consumer<Map<String, String>> handler) throws IOException {
+        List<String> header = readRecord(reader, delimiter);
+        if (header == null) {
+            return 0;
+        }
+        List<String> variables = new ArrayList<>();
+        for (String variable : header) {
+            variables.add(variable.startsWith("?") ? variable.substring(1) : variable);
+        }
+
+        // With a single variable an empty line is a row with that variable unbound. The empty text
+        // after the final line break is not a record, as readRecord returns null at the end of input.
+        boolean emptyLineIsRow = variables.size() == 1;
+        long count = 0;
+        List<String> record;
+        while ((record = readRecord(reader, delimiter)) != null) {
+            if (!emptyLineIsRow && record.size() == 1 && record.get(0).isEmpty()) {
+                continue;
+            }
+            if (handler != null) {
+                Map<String, String> binding = new LinkedHashMap<>();
+                for (int i = 0; i < variables.size() && i < record.size(); i++) {
+                    if (!record.get(i).isEmpty()) {
+                        binding.put(variables.get(i), record.get(i));
+                    }
+                }
+                handler.accept(binding);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reads one record, honouring CSV double-quote escaping. TSV terms are taken verbatim, as TSV
+     * results encode terms in their SPARQL syntax. Returns {@code null} at the end of the input.
+     */
+    private static List<String> readRecord(Reader reader, char delimiter) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean csv = delimiter == ',';
+        int c = reader.read();
+        if (c == -1) {
+            return null;
+        }
+        while (c != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        reader.reset();
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (csv && c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
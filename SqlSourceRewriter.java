@@ -0,0 +1,674 @@
+package se.umea.mapgen;
+
+import java.util.*;
+
+/**
+ * Adds a role guard to the SQL source of a mapping.
+ * <p>
+ * The source is tokenised and parsed into its query blocks (set-operation branches, SELECT clauses
+ * and derived tables in FROM). The guard is placed in the WHERE clause of the innermost block that
+ * scans base tables: a block whose only FROM item is a derived table passes the guard down to it, and
+ * every branch of a UNION/INTERSECT/EXCEPT is guarded. An existing WHERE condition with a top-level OR
+ * is parenthesised before the guard is added, and a new WHERE clause is inserted before GROUP BY,
+ * ORDER BY, LIMIT and similar trailing clauses. The rewritten query is produced by splicing into the
+ * original text, so formatting and identifier quoting are kept.
+ * <p>
+ * Sources that cannot be parsed with confidence (CTEs, dollar quoting, unbalanced parentheses, ...)
+ * are wrapped as {@code SELECT * FROM (source) rbac_guarded WHERE guard}, which is always correct but
+ * opaque to the planner, and the reason is returned so that it can be reported.
+ */
+class SqlSourceRewriter {
+
+    private static final Set<String> TRAILING_CLAUSES = new HashSet<>(Arrays.asList(
+            "GROUP", "HAVING", "WINDOW", "ORDER", "LIMIT", "OFFSET", "FETCH", "FOR"));
+    private static final Set<String> SET_OPERATORS = new HashSet<>(Arrays.asList("UNION", "INTERSECT", "EXCEPT"));
+    private static final Set<String> JOIN_KEYWORDS = new HashSet<>(Arrays.asList(
+            "JOIN", "INNER", "LEFT", "RIGHT", "FULL", "CROSS", "NATURAL", "OUTER", "LATERAL"));
+
+    static final class Rewrite {
+        final String sql;
+        /** Why the source could not be rewritten in place, or {@code null} if it was. */
+        final String problem;
+
+        Rewrite(String sql, String problem) {
+            this.sql = sql;
+            this.problem = problem;
+        }
+    }
+
+    static Rewrite addCondition(String source, String condition) {
+        String trimmedSource = source.trim();
+        try {
+            SqlSourceRewriter parser = new SqlSourceRewriter(trimmedSource);
+            List<Edit> edits = new ArrayList<>();
+            parser.parseQuery(0, parser.tokens.size()).guard(condition, edits);
+            return new Rewrite(apply(trimmedSource, edits), null);
+        } catch (UnsupportedSqlException e) {
+            String wrapped = "SELECT * FROM (" + trimmedSource + ") rbac_guarded WHERE " + condition;
+            return new Rewrite(wrapped, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the tables and views the source reads from, unqualified and with unquoted names folded
+     * to lower case, or {@code null} if the source cannot be tokenised or uses a CTE, whose names
+     * cannot be told apart from table names here. FROM and JOIN items are only looked for in query
+     * blocks, so {@code EXTRACT(YEAR FROM ...)} and similar calls are not mistaken for tables.
+     */
+    static Set<String> referencedTables(String source) {
+        List<Token> tokens;
+        try {
+            tokens = new SqlSourceRewriter(source.trim()).tokens;
+        } catch (UnsupportedSqlException e) {
+            return null;
+        }
+        if (!tokens.isEmpty() && tokens.get(0).isWord("WITH")) {
+            return null;
+        }
+        Set<String> tables = new LinkedHashSet<>();
+        Deque<boolean[]> enclosing = new ArrayDeque<>();
+        // { block is a query, inside its FROM clause }
+        boolean[] block = {true, false};
+        boolean expectTable = false;
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.kind == Kind.OPEN) {
+                enclosing.push(block);
+                Token next = i + 1 < tokens.size() ? tokens.get(i + 1) : token;
+                block = new boolean[]{next.isWord("SELECT") || next.isWord("WITH"), false};
+                expectTable = false;
+                continue;
+            }
+            if (token.kind == Kind.CLOSE) {
+                block = enclosing.isEmpty() ? block : enclosing.pop();
+                continue;
+            }
+            if (!block[0]) {
+                continue;
+            }
+            String word = token.upper();
+            if (word.equals("FROM")) {
+                block[1] = true;
+                expectTable = true;
+            } else if (word.equals("JOIN") && block[1]) {
+                expectTable = true;
+            } else if (token.kind == Kind.COMMA && block[1]) {
+                expectTable = true;
+            } else if (word.equals("WHERE") || TRAILING_CLAUSES.contains(word) || SET_OPERATORS.contains(word)) {
+                block[1] = false;
+                expectTable = false;
+            } else if (expectTable && (word.equals("LATERAL") || word.equals("ONLY"))) {
+                continue;
+            } else if (expectTable && (token.kind == Kind.WORD || token.kind == Kind.QUOTED)) {
+                // The last part of a qualified name is the table
+                while (i + 2 < tokens.size() && tokens.get(i + 1).text.equals(".")
+                        && (tokens.get(i + 2).kind == Kind.WORD || tokens.get(i + 2).kind == Kind.QUOTED)) {
+                    i += 2;
+                    token = tokens.get(i);
+                }
+                if (i + 1 < tokens.size() && tokens.get(i + 1).kind == Kind.OPEN) {
+                    // A set-returning function, not a table
+                    expectTable = false;
+                    continue;
+                }
+                tables.add(name(token));
+                expectTable = false;
+            } else {
+                expectTable = false;
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Returns whether the source is a single {@code SELECT DISTINCT} query, whose rows are unique as a
+     * whole. {@code DISTINCT ON} and set operations do not count.
+     */
+    static boolean selectsDistinct(String source) {
+        SqlSourceRewriter parser;
+        try {
+            parser = new SqlSourceRewriter(source.trim());
+        } catch (UnsupportedSqlException e) {
+            return false;
+        }
+        List<Token> tokens = parser.tokens;
+        return tokens.size() > 2 && tokens.get(0).isWord("SELECT") && tokens.get(1).isWord("DISTINCT")
+                && !tokens.get(2).isWord("ON") && !parser.containsTopLevelSetOperator();
+    }
+
+    /**
+     * Returns the output column of the source that holds the primary key of a table it scans, with an
+     * unquoted name folded to lower case, or {@code null} if no column is known to be unique. OMOP names
+     * the primary key of every table {@code <table>_id}. The source has to be a single SELECT without
+     * GROUP BY whose FROM clause lists plain tables, and every other table has to be joined on its own
+     * primary key by a top-level equality in WHERE, to the key table or to a table already joined that
+     * way, so that it adds at most one row per key.
+     */
+    static String keyColumn(String source) {
+        try {
+            return new SqlSourceRewriter(source.trim()).keyColumn();
+        } catch (UnsupportedSqlException e) {
+            return null;
+        }
+    }
+
+    private String keyColumn() {
+        if (tokens.isEmpty() || !tokens.get(0).isWord("SELECT") || containsTopLevelSetOperator()) {
+            return null;
+        }
+        int fromKeyword = -1;
+        int whereKeyword = -1;
+        int end = tokens.size();
+        for (int i = 1; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            if (token.kind == Kind.OPEN) {
+                i = matchingParenthesis[i];
+                continue;
+            }
+            String word = token.upper();
+            if (word.equals("GROUP") || word.equals("HAVING") || word.equals("INTO")) {
+                return null;
+            } else if (word.equals("FROM") && fromKeyword == -1) {
+                fromKeyword = i;
+            } else if (word.equals("WHERE") && whereKeyword == -1) {
+                whereKeyword = i;
+            } else if (TRAILING_CLAUSES.contains(word)) {
+                end = i;
+                break;
+            }
+        }
+        if (fromKeyword == -1) {
+            return null;
+        }
+
+        // Alias -> table of every FROM item; derived tables, functions and explicit joins are not analysed
+        Map<String, String> tables = new LinkedHashMap<>();
+        for (List<Token> item : splitTopLevel(fromKeyword + 1, whereKeyword != -1 ? whereKeyword : end)) {
+            int i = 0;
+            String table = null;
+            while (i < item.size() && isName(item.get(i))) {
+                table = name(item.get(i));
+                i++;
+                if (i < item.size() && item.get(i).text.equals(".")) {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            if (table == null) {
+                return null;
+            }
+            if (i < item.size() && item.get(i).isWord("AS")) {
+                i++;
+            }
+            String alias = table;
+            if (i < item.size() && isName(item.get(i)) && !JOIN_KEYWORDS.contains(item.get(i).upper())) {
+                alias = name(item.get(i));
+                i++;
+            }
+            if (i != item.size() || tables.put(alias, table) != null) {
+                return null;
+            }
+        }
+
+        // Top-level WHERE equalities between columns of two tables, as {alias, column, alias, column}
+        List<String[]> equalities = new ArrayList<>();
+        if (whereKeyword != -1 && !containsTopLevelWord(whereKeyword + 1, end, "OR")
+                && !containsTopLevelWord(whereKeyword + 1, end, "BETWEEN")) {
+            int conjunctStart = whereKeyword + 1;
+            for (int i = conjunctStart; i <= end; i++) {
+                if (i < end && tokens.get(i).kind == Kind.OPEN) {
+                    i = matchingParenthesis[i];
+                } else if (i == end || tokens.get(i).isWord("AND")) {
+                    String[] sides = equality(tokens.subList(conjunctStart, i), tables);
+                    if (sides != null) {
+                        equalities.add(sides);
+                    }
+                    conjunctStart = i + 1;
+                }
+            }
+        }
+
+        int selectStart = 1;
+        if (tokens.get(selectStart).isWord("DISTINCT") || tokens.get(selectStart).isWord("ALL")) {
+            selectStart++;
+            if (tokens.get(selectStart).isWord("ON") && tokens.get(selectStart + 1).kind == Kind.OPEN) {
+                selectStart = matchingParenthesis[selectStart + 1] + 1;
+            }
+        }
+        for (List<Token> item : splitTopLevel(selectStart, fromKeyword)) {
+            String[] column = columnReference(item, 0, tables);
+            if (column == null) {
+                continue;
+            }
+            int i = column.length == 3 ? Integer.parseInt(column[2]) : item.size();
+            String outputName = column[1];
+            if (i < item.size() && item.get(i).isWord("AS")) {
+                i++;
+            }
+            if (i < item.size() && isName(item.get(i))) {
+                outputName = name(item.get(i));
+                i++;
+            }
+            if (i != item.size() || !column[1].equals(tables.get(column[0]) + "_id")) {
+                continue;
+            }
+            if (joinedOnKeys(column[0], tables, equalities)) {
+                return outputName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads {@code [alias.]column} at {@code start} of {@code item} and returns the alias, the column
+     * and, if more tokens follow, the index after it. An unqualified column belongs to the only table.
+     */
+    private static String[] columnReference(List<Token> item, int start, Map<String, String> tables) {
+        if (start >= item.size() || !isName(item.get(start))) {
+            return null;
+        }
+        String alias;
+        String column;
+        int next;
+        if (start + 2 < item.size() && item.get(start + 1).text.equals(".") && isName(item.get(start + 2))) {
+            alias = name(item.get(start));
+            column = name(item.get(start + 2));
+            next = start + 3;
+        } else if (tables.size() == 1) {
+            alias = tables.keySet().iterator().next();
+            column = name(item.get(start));
+            next = start + 1;
+        } else {
+            return null;
+        }
+        if (!tables.containsKey(alias)) {
+            return null;
+        }
+        return next < item.size() ? new String[]{alias, column, String.valueOf(next)} : new String[]{alias, column};
+    }
+
+    /**
+     * Whether every table is reachable from {@code keyAlias} through equalities that each equate the
+     * primary key of a newly reached table to a column of a table reached before it. Each row of the
+     * key table then joins at most one row of every other table.
+     */
+    private static boolean joinedOnKeys(String keyAlias, Map<String, String> tables, List<String[]> equalities) {
+        Set<String> reached = new HashSet<>();
+        reached.add(keyAlias);
+        boolean grown = true;
+        while (grown && reached.size() < tables.size()) {
+            grown = false;
+            for (String[] equality : equalities) {
+                for (int side = 0; side < 4; side += 2) {
+                    String alias = equality[side];
+                    String otherAlias = equality[2 - side];
+                    if (!reached.contains(alias) && reached.contains(otherAlias)
+                            && equality[side + 1].equals(tables.get(alias) + "_id")) {
+                        reached.add(alias);
+                        grown = true;
+                    }
+                }
+            }
+        }
+        return reached.size() == tables.size();
+    }
+
+    /** Returns both sides of a {@code column = column} conjunct as {alias, column, alias, column}, or {@code null}. */
+    private static String[] equality(List<Token> conjunct, Map<String, String> tables) {
+        String[] left = columnReference(conjunct, 0, tables);
+        if (left == null || left.length != 3) {
+            return null;
+        }
+        int operator = Integer.parseInt(left[2]);
+        if (!conjunct.get(operator).text.equals("=")) {
+            return null;
+        }
+        String[] right = columnReference(conjunct, operator + 1, tables);
+        if (right == null || right.length != 2 || left[0].equals(right[0])) {
+            return null;
+        }
+        return new String[]{left[0], left[1], right[0], right[1]};
+    }
+
+    /** Splits the tokens between {@code from} and {@code to} at top-level commas. */
+    private List<List<Token>> splitTopLevel(int from, int to) {
+        List<List<Token>> items = new ArrayList<>();
+        List<Token> item = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Token token = tokens.get(i);
+            if (token.kind == Kind.COMMA) {
+                items.add(item);
+                item = new ArrayList<>();
+                continue;
+            }
+            item.add(token);
+            if (token.kind == Kind.OPEN) {
+                for (int j = i + 1; j <= matchingParenthesis[i]; j++) {
+                    item.add(tokens.get(j));
+                }
+                i = matchingParenthesis[i];
+            }
+        }
+        items.add(item);
+        return items;
+    }
+
+    private boolean containsTopLevelSetOperator() {
+        for (String operator : SET_OPERATORS) {
+            if (containsTopLevelWord(0, tokens.size(), operator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isName(Token token) {
+        return token.kind == Kind.WORD || token.kind == Kind.QUOTED;
+    }
+
+    private static String name(Token token) {
+        return token.kind == Kind.QUOTED
+                ? token.text.substring(1, token.text.length() - 1).replace("\"\"", "\"")
+                : token.text.toLowerCase(Locale.ROOT);
+    }
+
+    private static String apply(String sql, List<Edit> edits) {
+        // Apply from the end so that earlier positions stay valid; stable for equal positions
+        edits.sort(Comparator.comparingInt((Edit e) -> e.position).reversed());
+        StringBuilder result = new StringBuilder(sql);
+        for (Edit edit : edits) {
+            result.insert(edit.position, edit.text);
+        }
+        return result.toString();
+    }
+
+    private static final class Edit {
+        final int position;
+        final String text;
+
+        Edit(int position, String text) {
+            this.position = position;
+            this.text = text;
+        }
+    }
+
+    private static class UnsupportedSqlException extends Exception {
+        UnsupportedSqlException(String message) {
+            super(message);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Tokens
+
+    private enum Kind { WORD, QUOTED, STRING, NUMBER, OPEN, CLOSE, COMMA, SEMICOLON, SYMBOL }
+
+    private static final class Token {
+        final Kind kind;
+        final String text;
+        final int start;
+        final int end;
+
+        Token(Kind kind, String text, int start, int end) {
+            this.kind = kind;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean isWord(String word) {
+            return kind == Kind.WORD && text.equalsIgnoreCase(word);
+        }
+
+        String upper() {
+            return kind == Kind.WORD ? text.toUpperCase(Locale.ROOT) : "";
+        }
+    }
+
+    private final List<Token> tokens;
+    private final int[] matchingParenthesis;
+
+    private SqlSourceRewriter(String sql) throws UnsupportedSqlException {
+        this.tokens = tokenize(sql);
+        while (!tokens.isEmpty() && tokens.get(tokens.size() - 1).kind == Kind.SEMICOLON) {
+            tokens.remove(tokens.size() - 1);
+        }
+        this.matchingParenthesis = matchParentheses(tokens);
+    }
+
+    private static List<Token> tokenize(String sql) throws UnsupportedSqlException {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            int start = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '-' && i + 1 < n && sql.charAt(i + 1) == '-') {
+                while (i < n && sql.charAt(i) != '\n') i++;
+            } else if (c == '/' && i + 1 < n && sql.charAt(i + 1) == '*') {
+                int close = sql.indexOf("*/", i + 2);
+                if (close == -1) throw new UnsupportedSqlException("unterminated comment");
+                i = close + 2;
+            } else if (c == '\'' || c == '"') {
+                i = skipQuoted(sql, i, c);
+                tokens.add(new Token(c == '\'' ? Kind.STRING : Kind.QUOTED, sql.substring(start, i), start, i));
+            } else if (c == '$') {
+                throw new UnsupportedSqlException("dollar-quoted strings or positional parameters");
+            } else if (Character.isLetter(c) || c == '_') {
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_' || sql.charAt(i) == '$')) i++;
+                // E'...' strings may contain backslash escapes that the quote skipping cannot follow
+                if (i < n && sql.charAt(i) == '\'' && i - start == 1 && (c == 'E' || c == 'e')) {
+                    throw new UnsupportedSqlException("escape string literal");
+                }
+                tokens.add(new Token(Kind.WORD, sql.substring(start, i), start, i));
+            } else if (Character.isDigit(c)) {
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) i++;
+                tokens.add(new Token(Kind.NUMBER, sql.substring(start, i), start, i));
+            } else {
+                i++;
+                Kind kind = c == '(' ? Kind.OPEN : c == ')' ? Kind.CLOSE : c == ',' ? Kind.COMMA
+                        : c == ';' ? Kind.SEMICOLON : Kind.SYMBOL;
+                tokens.add(new Token(kind, String.valueOf(c), start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static int skipQuoted(String sql, int start, char quote) throws UnsupportedSqlException {
+        int i = start + 1;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == quote) {
+                // A doubled quote is an escaped quote
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        throw new UnsupportedSqlException("unterminated quoted text");
+    }
+
+    private static int[] matchParentheses(List<Token> tokens) throws UnsupportedSqlException {
+        int[] matching = new int[tokens.size()];
+        Arrays.fill(matching, -1);
+        Deque<Integer> open = new ArrayDeque<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).kind == Kind.OPEN) {
+                open.push(i);
+            } else if (tokens.get(i).kind == Kind.CLOSE) {
+                if (open.isEmpty()) throw new UnsupportedSqlException("unbalanced parentheses");
+                int o = open.pop();
+                matching[o] = i;
+                matching[i] = o;
+            } else if (tokens.get(i).kind == Kind.SEMICOLON) {
+                throw new UnsupportedSqlException("multiple statements");
+            }
+        }
+        if (!open.isEmpty()) throw new UnsupportedSqlException("unbalanced parentheses");
+        return matching;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Query blocks
+
+    private interface Block {
+        void guard(String condition, List<Edit> edits);
+    }
+
+    /** Branches of a UNION, INTERSECT or EXCEPT; each branch is guarded on its own. */
+    private static final class SetOperation implements Block {
+        final List<Block> branches;
+
+        SetOperation(List<Block> branches) {
+            this.branches = branches;
+        }
+
+        @Override
+        public void guard(String condition, List<Edit> edits) {
+            for (Block branch : branches) {
+                branch.guard(condition, edits);
+            }
+        }
+    }
+
+    private final class Select implements Block {
+        /** The only FROM item, if it is a derived table. */
+        Block derivedTable;
+        int whereKeyword = -1;
+        /** Index of the last token of the WHERE condition, or of the clause a new WHERE goes after. */
+        int lastConditionToken;
+        boolean whereHasTopLevelOr;
+
+        @Override
+        public void guard(String condition, List<Edit> edits) {
+            if (derivedTable != null && whereKeyword == -1) {
+                derivedTable.guard(condition, edits);
+            } else if (whereKeyword == -1) {
+                edits.add(new Edit(tokens.get(lastConditionToken).end, " WHERE " + condition));
+            } else if (whereHasTopLevelOr) {
+                edits.add(new Edit(tokens.get(whereKeyword + 1).start, "("));
+                edits.add(new Edit(tokens.get(lastConditionToken).end, ") AND " + condition));
+            } else {
+                edits.add(new Edit(tokens.get(lastConditionToken).end, " AND " + condition));
+            }
+        }
+    }
+
+    private Block parseQuery(int from, int to) throws UnsupportedSqlException {
+        if (from >= to) {
+            throw new UnsupportedSqlException("empty query");
+        }
+        // (SELECT ...) as a whole
+        if (tokens.get(from).kind == Kind.OPEN && matchingParenthesis[from] == to - 1) {
+            return parseQuery(from + 1, to - 1);
+        }
+
+        List<Block> branches = new ArrayList<>();
+        int branchStart = from;
+        for (int i = from; i < to; i++) {
+            Token token = tokens.get(i);
+            if (token.kind == Kind.OPEN) {
+                i = matchingParenthesis[i];
+            } else if (SET_OPERATORS.contains(token.upper())) {
+                branches.add(parseQuery(branchStart, i));
+                branchStart = i + 1;
+                if (branchStart < to && (tokens.get(branchStart).isWord("ALL") || tokens.get(branchStart).isWord("DISTINCT"))) {
+                    branchStart++;
+                }
+            }
+        }
+        if (branches.isEmpty()) {
+            return parseSelect(from, to);
+        }
+        branches.add(parseQuery(branchStart, to));
+        return new SetOperation(branches);
+    }
+
+    private Select parseSelect(int from, int to) throws UnsupportedSqlException {
+        Token first = tokens.get(from);
+        if (first.isWord("WITH")) {
+            throw new UnsupportedSqlException("common table expression");
+        }
+        if (!first.isWord("SELECT")) {
+            throw new UnsupportedSqlException("query does not start with SELECT");
+        }
+
+        int fromKeyword = -1;
+        int whereKeyword = -1;
+        int trailingClause = to;
+        for (int i = from + 1; i < to; i++) {
+            Token token = tokens.get(i);
+            if (token.kind == Kind.OPEN) {
+                i = matchingParenthesis[i];
+                continue;
+            }
+            String word = token.upper();
+            if (word.equals("INTO")) {
+                throw new UnsupportedSqlException("SELECT INTO");
+            } else if (word.equals("FROM") && fromKeyword == -1) {
+                fromKeyword = i;
+            } else if (word.equals("WHERE") && whereKeyword == -1) {
+                whereKeyword = i;
+            } else if (TRAILING_CLAUSES.contains(word) && trailingClause == to) {
+                trailingClause = i;
+                break;
+            }
+        }
+
+        Select select = new Select();
+        select.whereKeyword = whereKeyword;
+        select.lastConditionToken = trailingClause - 1;
+        if (whereKeyword != -1) {
+            if (whereKeyword + 1 >= trailingClause) {
+                throw new UnsupportedSqlException("empty WHERE clause");
+            }
+            select.whereHasTopLevelOr = containsTopLevelWord(whereKeyword + 1, trailingClause, "OR");
+        }
+        if (fromKeyword != -1) {
+            int fromEnd = whereKeyword != -1 ? whereKeyword : trailingClause;
+            select.derivedTable = parseSingleDerivedTable(fromKeyword + 1, fromEnd);
+        }
+        return select;
+    }
+
+    /**
+     * Returns the derived table if it is the only item of the FROM clause, {@code null} otherwise.
+     */
+    private Block parseSingleDerivedTable(int from, int to) throws UnsupportedSqlException {
+        if (from >= to || tokens.get(from).kind != Kind.OPEN) {
+            return null;
+        }
+        int close = matchingParenthesis[from];
+        for (int i = close + 1; i < to; i++) {
+            Token token = tokens.get(i);
+            if (token.kind == Kind.OPEN) {
+                i = matchingParenthesis[i];
+            } else if (token.kind == Kind.COMMA || JOIN_KEYWORDS.contains(token.upper())) {
+                return null;
+            }
+        }
+        Token inner = tokens.get(from + 1);
+        if (!inner.isWord("SELECT") && !inner.isWord("WITH") && inner.kind != Kind.OPEN) {
+            // VALUES lists and similar are not query blocks
+            return null;
+        }
+        return parseQuery(from + 1, close);
+    }
+
+    private boolean containsTopLevelWord(int from, int to, String word) {
+        for (int i = from; i < to; i++) {
+            Token token = tokens.get(i);
+            if (token.kind == Kind.OPEN) {
+                i = matchingParenthesis[i];
+            } else if (token.isWord(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
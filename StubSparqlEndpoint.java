@@ -0,0 +1,80 @@
+package se.umea.mapgen;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for the RBAC SPARQL endpoint, so that the query tools can be exercised offline.
+ * It answers every POST to {@code /sparql} with a fixed SPARQL JSON result after an optional delay.
+ */
+class StubSparqlEndpoint implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final byte[] response;
+    private final long delayMillis;
+
+    StubSparqlEndpoint(int port, int resultCount, long delayMillis) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.response = buildResponse(resultCount);
+        this.delayMillis = delayMillis;
+        server.createContext("/sparql", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String url() {
+        return "http://localhost:" + server.getAddress().getPort() + "/sparql";
+    }
+
+    private static byte[] buildResponse(int resultCount) {
+        StringBuilder json = new StringBuilder("{\"head\":{\"vars\":[\"s\"]},\"results\":{\"bindings\":[");
+        for (int i = 0; i < resultCount; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"s\":{\"type\":\"uri\",\"value\":\"http://hl7.org/fhir/Patient/").append(i).append("\"}}");
+        }
+        return json.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+        if (delayMillis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/sparql-results+json");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int results = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        StubSparqlEndpoint endpoint = new StubSparqlEndpoint(port, results, delay);
+        System.out.println("Stub SPARQL endpoint listening at " + endpoint.url());
+    }
+}
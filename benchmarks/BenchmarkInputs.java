@@ -0,0 +1,102 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark inputs of a chosen size, generated from the files bundled with the repository.
+ * <p>
+ * The files are looked up in the directory given by the {@code ppobda.home} system property, or in
+ * the working directory.
+ */
+final class BenchmarkInputs {
+
+    private BenchmarkInputs() {
+    }
+
+    static Path bundled(String name) {
+        return Paths.get(System.getProperty("ppobda.home", ".")).resolve(name);
+    }
+
+    /**
+     * Writes {@code copies} copies of the mappings of {@code source} to a temporary OBDA file. Every copy
+     * gets its own mapping ids, so the result is a valid mapping file of {@code copies} times the size.
+     */
+    static Path scaledMappingFile(Path source, int copies) throws IOException {
+        List<ObdaReader.Mapping> mappings = new ArrayList<>();
+        String prefixSection;
+        try (ObdaReader reader = new ObdaReader(source)) {
+            prefixSection = reader.readPrefixSection();
+            ObdaReader.Mapping mapping;
+            while ((mapping = reader.next()) != null) {
+                mappings.add(mapping);
+            }
+        }
+
+        Path file = Files.createTempFile("benchmark-mappings", ".obda");
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            if (!prefixSection.isEmpty()) {
+                writer.write(prefixSection + "\n\n");
+            }
+            writer.write("[MappingDeclaration] @collection [[\n");
+            boolean first = true;
+            for (int copy = 0; copy < copies; copy++) {
+                for (ObdaReader.Mapping mapping : mappings) {
+                    if (!first) {
+                        writer.write("\n\n");
+                    }
+                    first = false;
+                    for (String line : mapping.headerLines) {
+                        writer.write(line.startsWith("mappingId") ? line + "-" + copy : line);
+                        writer.write('\n');
+                    }
+                    writer.write("source     " + mapping.source);
+                }
+            }
+            writer.write("\n]]");
+        }
+        return file;
+    }
+
+    /** Reads the SQL sources of a mapping file. */
+    static List<String> sources(Path mappingFile) throws IOException {
+        List<String> sources = new ArrayList<>();
+        try (ObdaReader reader = new ObdaReader(mappingFile)) {
+            reader.readPrefixSection();
+            ObdaReader.Mapping mapping;
+            while ((mapping = reader.next()) != null) {
+                sources.add(mapping.source);
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Writes {@code size} Datalog rules to a temporary policy JSON file. The rules of {@code source}
+     * are repeated with numbered predicates, so that they stay distinct for the minimiser.
+     */
+    static Path scaledPolicyFile(Path source, int size) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<String> rules = objectMapper.readValue(source.toFile(), new TypeReference<List<String>>() {});
+        List<String> scaled = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int copy = i / rules.size();
+            String rule = rules.get(i % rules.size());
+            int arrow = rule.indexOf(":-");
+            scaled.add(copy == 0 ? rule
+                    : rule.substring(0, arrow) + rule.substring(arrow).replaceAll("([A-Za-z_.]+)\\(", "$1_" + copy + "("));
+        }
+        Path file = Files.createTempFile("benchmark-policy", ".json");
+        objectMapper.writeValue(file.toFile(), scaled);
+        return file;
+    }
+}
@@ -0,0 +1,34 @@
+package se.umea.mapgen;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate per operation is reported
+ * next to the time, and writes the results to {@code jmh-results.json} for comparison between runs.
+ * The optional argument is a regular expression selecting benchmarks, e.g. {@code MappingCombiner}.
+ * <p>
+ * {@link ReformulationBenchmark} needs the database metadata JSON, which is not bundled, so it only
+ * runs when its path is given with {@code -Dppobda.metadata=<file>}.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String metadataFile = System.getProperty("ppobda.metadata");
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "se\\.umea\\.mapgen\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-results.json");
+        if (metadataFile == null) {
+            builder.exclude("ReformulationBenchmark");
+        } else {
+            builder.param("metadataFile", metadataFile);
+        }
+        new Runner(builder.build()).run();
+    }
+}
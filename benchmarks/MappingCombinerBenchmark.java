@@ -0,0 +1,76 @@
+package se.umea.mapgen;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and role rewriting of mapping files the size of {@code Mapping1.obda} (193 mappings) and
+ * multiples of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingCombinerBenchmark {
+
+    /** Copies of the 193 bundled mappings. */
+    @Param({"1", "10", "100"})
+    public int copies;
+
+    private Path input;
+    private Path output;
+    private List<String> sources;
+    private List<MappingCombinerRBAC.MappingFile> mappingFiles;
+
+    @Setup(Level.Trial)
+    public void generateInput() throws IOException {
+        input = BenchmarkInputs.scaledMappingFile(BenchmarkInputs.bundled("Mapping1.obda"), copies);
+        output = Files.createTempFile("benchmark-combined", ".obda");
+        sources = BenchmarkInputs.sources(input);
+        mappingFiles = Collections.singletonList(new MappingCombinerRBAC.MappingFile(input.toString(), "nurse"));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException {
+        try (ObdaReader reader = new ObdaReader(input)) {
+            blackhole.consume(reader.readPrefixSection());
+            ObdaReader.Mapping mapping;
+            while ((mapping = reader.next()) != null) {
+                blackhole.consume(mapping);
+            }
+        }
+    }
+
+    @Benchmark
+    public void rewriteSources(Blackhole blackhole) {
+        String roleCondition = MappingCombinerRBAC.roleCondition(Collections.singleton("nurse"));
+        for (String source : sources) {
+            blackhole.consume(SqlSourceRewriter.addCondition(source, roleCondition));
+        }
+    }
+
+    @Benchmark
+    public void combine() throws IOException {
+        MappingCombinerRBAC.combineMappingsWithRoles(mappingFiles, output, 1, new CompilationMetrics("benchmark"));
+    }
+
+    @Benchmark
+    public void combineCollapsingRoles() throws IOException {
+        MappingCombinerRBAC.combineMappingsCollapsingRoles(mappingFiles, output, new CompilationMetrics("benchmark"));
+    }
+}
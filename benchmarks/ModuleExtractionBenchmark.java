@@ -0,0 +1,56 @@
+package se.umea.mapgen;
+
+import org.openjdk.jmh.annotations.*;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.*;
+import uk.ac.manchester.cs.owlapi.modularity.ModuleType;
+import uk.ac.manchester.cs.owlapi.modularity.SyntacticLocalityModuleExtractor;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * STAR module extraction as in {@link FHIRModuleExtractor}, for seed signatures of growing size.
+ * The bundled {@code fhir-module.owl} is used by default; pass {@code -p ontologyFile=fhir.ttl} to
+ * extract from the full FHIR ontology.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModuleExtractionBenchmark {
+
+    @Param({"fhir-module.owl"})
+    public String ontologyFile;
+
+    /** Number of classes in the seed signature, taken in IRI order. */
+    @Param({"1", "10", "100"})
+    public int seedClasses;
+
+    private OWLOntology ontology;
+    private SyntacticLocalityModuleExtractor extractor;
+    private Set<OWLEntity> seedSignature;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+        ontology = manager.loadOntologyFromOntologyDocument(BenchmarkInputs.bundled(ontologyFile).toFile());
+        extractor = new SyntacticLocalityModuleExtractor(manager, ontology, ModuleType.STAR);
+
+        List<OWLClass> classes = new ArrayList<>(ontology.getClassesInSignature());
+        classes.sort(Comparator.comparing(cls -> cls.getIRI().toString()));
+        seedSignature = new HashSet<>(classes.subList(0, Math.min(seedClasses, classes.size())));
+    }
+
+    @Benchmark
+    public Set<OWLAxiom> extract() {
+        return extractor.extract(seedSignature);
+    }
+
+    @Benchmark
+    public ClassHierarchyIndex indexHierarchy() {
+        return new ClassHierarchyIndex(ontology);
+    }
+}
@@ -0,0 +1,58 @@
+package se.umea.mapgen;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Parsing and minimising policy files with the rules of {@code PolicyFile.json} repeated up to the
+ * size of an expanded policy. {@link #parseRules} reads the rules with Jackson and {@link DatalogRule},
+ * as the minimiser and {@link PolicyPreCheck} do; loading them into ontology queries with
+ * {@code PolicyExpansion.loadPolicyRules} is measured by {@link ReformulationBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PolicyBenchmark {
+
+    @Param({"13", "130", "1300"})
+    public int rules;
+
+    private Path policyFile;
+    private List<String> ruleTexts;
+
+    @Setup(Level.Trial)
+    public void generateInput() throws IOException {
+        policyFile = BenchmarkInputs.scaledPolicyFile(BenchmarkInputs.bundled("PolicyFile.json"), rules);
+        ruleTexts = new ObjectMapper().readValue(policyFile.toFile(), new TypeReference<List<String>>() {});
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        Files.deleteIfExists(policyFile);
+    }
+
+    @Benchmark
+    public void parseRules(Blackhole blackhole) throws IOException {
+        List<String> loaded = new ObjectMapper().readValue(policyFile.toFile(), new TypeReference<List<String>>() {});
+        for (String rule : loaded) {
+            blackhole.consume(DatalogRule.parse(rule));
+        }
+    }
+
+    @Benchmark
+    public PolicyMinimizer.Result<String> minimize() {
+        return PolicyMinimizer.minimize(ruleTexts, Function.identity());
+    }
+}
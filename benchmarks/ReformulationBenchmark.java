@@ -0,0 +1,86 @@
+package se.umea.mapgen;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.CharSource;
+import com.google.common.io.MoreFiles;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.OWLOntology;
+import ppmappingcompiler.policy.OntologyConjunctiveQuery;
+import se.umea.mapgen.reformulation.OntopReformulationAPI;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading, SPARQL generation and Ontop reformulation of the rules of {@code PolicyFile.json}, as done
+ * by {@link PolicyExpansion} for every policy rule. The database metadata JSON is not bundled, so its
+ * path has to be passed with {@code -p metadataFile=<file>}, or to {@link BenchmarkRunner} with
+ * {@code -Dppobda.metadata=<file>}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReformulationBenchmark {
+
+    @Param({"fhir-module.owl"})
+    public String ontologyFile;
+
+    @Param({"Mapping1.obda"})
+    public String mappingFile;
+
+    @Param({""})
+    public String metadataFile;
+
+    private String policyFile;
+    private OWLOntology ontology;
+    private List<OntologyConjunctiveQuery> policyRules;
+    private List<String> sparqlQueries;
+    private OntopReformulationAPI rewriter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (metadataFile.isEmpty()) {
+            throw new IllegalArgumentException("Pass the database metadata JSON with -p metadataFile=<file>");
+        }
+        Path owl = BenchmarkInputs.bundled(ontologyFile);
+        ontology = OWLManager.createOWLOntologyManager().loadOntologyFromOntologyDocument(owl.toFile());
+        policyFile = BenchmarkInputs.bundled("PolicyFile.json").toString();
+        policyRules = PolicyExpansion.loadPolicyRules(policyFile, ontology);
+        sparqlQueries = new ArrayList<>();
+        for (OntologyConjunctiveQuery rule : policyRules) {
+            sparqlQueries.add(rule.toSparql());
+        }
+
+        CharSource mappingSource = MoreFiles.asCharSource(BenchmarkInputs.bundled(mappingFile), Charsets.UTF_8);
+        CharSource ontologySource = MoreFiles.asCharSource(owl, Charsets.UTF_8);
+        CharSource metadataSource = MoreFiles.asCharSource(Paths.get(metadataFile), Charsets.UTF_8);
+        rewriter = new OntopReformulationAPI(PolicyExpansion.reformulationProperties(), mappingSource, ontologySource, metadataSource);
+    }
+
+    @Benchmark
+    public List<OntologyConjunctiveQuery> loadPolicyRules() throws Exception {
+        return PolicyExpansion.loadPolicyRules(policyFile, ontology);
+    }
+
+    @Benchmark
+    public void toSparql(Blackhole blackhole) throws Exception {
+        for (OntologyConjunctiveQuery rule : policyRules) {
+            blackhole.consume(rule.toSparql());
+        }
+    }
+
+    @Benchmark
+    public void reformulate(Blackhole blackhole) throws Exception {
+        for (String sparql : sparqlQueries) {
+            blackhole.consume(rewriter.reformulate(sparql));
+        }
+    }
+}
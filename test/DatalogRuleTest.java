@@ -0,0 +1,75 @@
+package se.umea.mapgen;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatalogRuleTest {
+
+    private static boolean contained(String rule, String other) {
+        return DatalogRule.parse(rule).isContainedIn(DatalogRule.parse(other));
+    }
+
+    @Test
+    void ruleIsContainedInItselfUpToRenamingAndAtomOrder() {
+        String rule = "Q() :- Patient.gender(x), Patient.address(x, y) .";
+        assertTrue(contained(rule, rule));
+        assertTrue(contained(rule, "Q() :- Patient.address(a, b), Patient.gender(a) ."));
+    }
+
+    @Test
+    void moreAtomsAreMoreSpecific() {
+        String general = "Q() :- Patient.gender(x) .";
+        String specific = "Q() :- Patient.gender(x), Patient.address(x, y) .";
+        assertTrue(contained(specific, general));
+        assertFalse(contained(general, specific));
+    }
+
+    @Test
+    void constantsAreMoreSpecificThanVariables() {
+        String general = "Q() :- value(x, v) .";
+        String specific = "Q() :- value(x, 'female') .";
+        assertTrue(contained(specific, general));
+        assertFalse(contained(general, specific));
+        assertFalse(contained(specific, "Q() :- value(x, 'male') ."));
+        assertTrue(contained("Q() :- Patient.link(x, <http://hl7.org/fhir/Patient/1>) .", "Q() :- Patient.link(x, y) ."));
+    }
+
+    @Test
+    void repeatedVariablesMustMapConsistently() {
+        assertTrue(contained("Q() :- Patient.link(x, x) .", "Q() :- Patient.link(x, y) ."));
+        assertFalse(contained("Q() :- Patient.link(x, y) .", "Q() :- Patient.link(x, x) ."));
+        assertFalse(contained("Q() :- Patient.link(x, y), Patient.gender(y) .",
+                "Q() :- Patient.link(x, y), Patient.gender(x) ."));
+    }
+
+    @Test
+    void backtracksOverCandidateAtoms() {
+        // Patient.link(x, y) has to map onto the second link atom for Patient.gender(y) to match
+        assertTrue(contained("Q() :- Patient.link(a, b), Patient.link(a, c), Patient.gender(c) .",
+                "Q() :- Patient.link(x, y), Patient.gender(y) ."));
+    }
+
+    @Test
+    void headsMustMapOntoEachOther() {
+        assertTrue(contained("Q(a) :- Patient.link(a, b) .", "Q(x) :- Patient.link(x, y) ."));
+        assertFalse(contained("Q(b) :- Patient.link(a, b) .", "Q(x) :- Patient.link(x, y) ."));
+        assertFalse(contained("Q(a) :- Patient.gender(a) .", "Q() :- Patient.gender(x) ."));
+        assertFalse(contained("Q() :- Patient.gender(a) .", "P() :- Patient.gender(x) ."));
+    }
+
+    @Test
+    void predicatesMustMatchInNameAndArity() {
+        assertFalse(contained("Q() :- Patient.gender(x) .", "Q() :- Patient.address(x) ."));
+        assertFalse(contained("Q() :- Patient.address(x) .", "Q() :- Patient.address(x, y) ."));
+    }
+
+    @Test
+    void comparisonsAreMatchedSyntactically() {
+        String comparison = "Q() :- value(x, v), v != 'female' .";
+        assertTrue(contained(comparison, "Q() :- value(y, w), w != 'female' ."));
+        assertTrue(contained(comparison, "Q() :- value(x, v) ."));
+        assertFalse(contained("Q() :- value(x, v) .", comparison));
+        assertFalse(contained(comparison, "Q() :- value(x, v), v <> 'female' ."));
+    }
+}
@@ -0,0 +1,139 @@
+package se.umea.mapgen;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqlSourceRewriterTest {
+
+    private static final String GUARD = "role = 'doctor'";
+
+    private static String guarded(String source) {
+        SqlSourceRewriter.Rewrite rewrite = SqlSourceRewriter.addCondition(source, GUARD);
+        assertNull(rewrite.problem, "rewritten in place");
+        return rewrite.sql;
+    }
+
+    @Test
+    void addsWhereClause() {
+        assertEquals("SELECT a FROM t WHERE role = 'doctor'", guarded("SELECT a FROM t"));
+        assertEquals("SELECT a FROM t WHERE role = 'doctor';", guarded("  SELECT a FROM t;\n"));
+    }
+
+    @Test
+    void extendsExistingWhereClause() {
+        assertEquals("SELECT a FROM t WHERE b = 1 AND role = 'doctor'", guarded("SELECT a FROM t WHERE b = 1"));
+    }
+
+    @Test
+    void parenthesisesTopLevelOr() {
+        assertEquals("SELECT a FROM t WHERE (b = 1 OR c = 2) AND role = 'doctor'",
+                guarded("SELECT a FROM t WHERE b = 1 OR c = 2"));
+    }
+
+    @Test
+    void leavesNestedOrAlone() {
+        assertEquals("SELECT a FROM t WHERE (b = 1 OR c = 2) AND d = 3 AND role = 'doctor'",
+                guarded("SELECT a FROM t WHERE (b = 1 OR c = 2) AND d = 3"));
+        assertEquals("SELECT a FROM t WHERE b IN (SELECT b FROM u WHERE c = 1 OR c = 2) AND role = 'doctor'",
+                guarded("SELECT a FROM t WHERE b IN (SELECT b FROM u WHERE c = 1 OR c = 2)"));
+    }
+
+    @Test
+    void guardsEveryBranchOfSetOperations() {
+        assertEquals("SELECT a FROM t WHERE role = 'doctor' UNION SELECT a FROM u WHERE b = 1 AND role = 'doctor'",
+                guarded("SELECT a FROM t UNION SELECT a FROM u WHERE b = 1"));
+        assertEquals("SELECT a FROM t WHERE role = 'doctor' UNION ALL SELECT a FROM u WHERE role = 'doctor' "
+                        + "EXCEPT SELECT a FROM v WHERE role = 'doctor'",
+                guarded("SELECT a FROM t UNION ALL SELECT a FROM u EXCEPT SELECT a FROM v"));
+        assertEquals("(SELECT a FROM t WHERE role = 'doctor') INTERSECT (SELECT a FROM u WHERE role = 'doctor')",
+                guarded("(SELECT a FROM t) INTERSECT (SELECT a FROM u)"));
+    }
+
+    @Test
+    void passesGuardIntoSingleDerivedTable() {
+        assertEquals("SELECT * FROM (SELECT a FROM t WHERE role = 'doctor') s",
+                guarded("SELECT * FROM (SELECT a FROM t) s"));
+        assertEquals("SELECT * FROM (SELECT a FROM t WHERE role = 'doctor' UNION SELECT a FROM u WHERE role = 'doctor') s",
+                guarded("SELECT * FROM (SELECT a FROM t UNION SELECT a FROM u) s"));
+    }
+
+    @Test
+    void guardsOuterBlockOfFilteredOrJoinedDerivedTable() {
+        assertEquals("SELECT * FROM (SELECT a FROM t) s WHERE s.a > 1 AND role = 'doctor'",
+                guarded("SELECT * FROM (SELECT a FROM t) s WHERE s.a > 1"));
+        assertEquals("SELECT * FROM (SELECT a FROM t) s, u WHERE role = 'doctor'",
+                guarded("SELECT * FROM (SELECT a FROM t) s, u"));
+        assertEquals("SELECT * FROM (SELECT a FROM t) s JOIN u ON u.a = s.a WHERE role = 'doctor'",
+                guarded("SELECT * FROM (SELECT a FROM t) s JOIN u ON u.a = s.a"));
+    }
+
+    @Test
+    void insertsWhereBeforeTrailingClauses() {
+        assertEquals("SELECT a, count(*) FROM t WHERE role = 'doctor' GROUP BY a HAVING count(*) > 1",
+                guarded("SELECT a, count(*) FROM t GROUP BY a HAVING count(*) > 1"));
+        assertEquals("SELECT a FROM t WHERE b = 1 AND role = 'doctor' ORDER BY a LIMIT 10",
+                guarded("SELECT a FROM t WHERE b = 1 ORDER BY a LIMIT 10"));
+        assertEquals("SELECT a FROM t WHERE role = 'doctor' LIMIT 5 OFFSET 10",
+                guarded("SELECT a FROM t LIMIT 5 OFFSET 10"));
+        assertEquals("SELECT a FROM t WHERE role = 'doctor' UNION SELECT a FROM u WHERE role = 'doctor' ORDER BY a",
+                guarded("SELECT a FROM t UNION SELECT a FROM u ORDER BY a"));
+    }
+
+    @Test
+    void ignoresKeywordsInCommentsAndQuotedText() {
+        assertEquals("SELECT a /* FROM x WHERE y OR z */ FROM t WHERE role = 'doctor' ORDER BY a",
+                guarded("SELECT a /* FROM x WHERE y OR z */ FROM t ORDER BY a"));
+        assertEquals("SELECT a FROM t WHERE role = 'doctor' -- ORDER BY a",
+                guarded("SELECT a FROM t -- ORDER BY a\n"));
+        assertEquals("SELECT \"where\" FROM \"order\" WHERE role = 'doctor' ORDER BY \"where\"",
+                guarded("SELECT \"where\" FROM \"order\" ORDER BY \"where\""));
+        assertEquals("SELECT a FROM t WHERE b = 'x OR y' AND role = 'doctor'",
+                guarded("SELECT a FROM t WHERE b = 'x OR y'"));
+        assertEquals("SELECT a FROM t WHERE b = 'it''s (' AND role = 'doctor'",
+                guarded("SELECT a FROM t WHERE b = 'it''s ('"));
+    }
+
+    @Test
+    void wrapsSourcesItCannotParse() {
+        String[][] cases = {
+                {"WITH x AS (SELECT 1) SELECT * FROM x", "common table expression"},
+                {"SELECT $1 FROM t", "dollar-quoted strings or positional parameters"},
+                {"SELECT a FROM t WHERE (b = 1", "unbalanced parentheses"},
+                {"SELECT a FROM t; SELECT b FROM u", "multiple statements"},
+                {"SELECT a FROM t WHERE b = E'\\''", "escape string literal"},
+                {"VALUES (1)", "query does not start with SELECT"},
+        };
+        for (String[] c : cases) {
+            SqlSourceRewriter.Rewrite rewrite = SqlSourceRewriter.addCondition(c[0], GUARD);
+            assertEquals("SELECT * FROM (" + c[0] + ") rbac_guarded WHERE " + GUARD, rewrite.sql);
+            assertEquals(c[1], rewrite.problem);
+        }
+    }
+
+    @Test
+    void findsKeyColumnOfTablesJoinedOnTheirKeys() {
+        assertEquals("person_id", SqlSourceRewriter.keyColumn("SELECT v1.\"person_id\" AS \"person_id\", "
+                + "v2.\"concept_name\" FROM \"person\" v1, \"concept\" v2 WHERE v1.\"gender_concept_id\" = v2.\"concept_id\""));
+        assertEquals("id", SqlSourceRewriter.keyColumn("SELECT v.visit_occurrence_id AS Id FROM visit_occurrence v"));
+        // concept v3 is joined through concept v2, which is joined to the key table
+        assertEquals("person_id", SqlSourceRewriter.keyColumn("SELECT v1.person_id FROM person v1, concept v2, concept v3 "
+                + "WHERE v3.concept_id = v2.domain_concept_id AND v2.concept_id = v1.gender_concept_id"));
+    }
+
+    @Test
+    void findsNoKeyColumnWhenRowsCanRepeat() {
+        // v2 and v3 are joined to each other but not to person, so every person repeats
+        assertNull(SqlSourceRewriter.keyColumn("SELECT v1.\"person_id\" AS \"person_id\" FROM \"person\" v1, "
+                + "\"concept\" v2, \"concept\" v3 WHERE v2.\"concept_id\" = v3.\"concept_id\""));
+        assertNull(SqlSourceRewriter.keyColumn("SELECT v1.person_id FROM person v1, concept v2 "
+                + "WHERE v1.gender_concept_id = v2.concept_id OR v1.year_of_birth = 1990"));
+        assertNull(SqlSourceRewriter.keyColumn("SELECT v1.person_id FROM person v1, concept v2 "
+                + "WHERE v1.gender_concept_id <= v2.concept_id"));
+        assertNull(SqlSourceRewriter.keyColumn("SELECT v1.person_id FROM person v1, visit_occurrence v2 "
+                + "WHERE v2.person_id = v1.person_id"));
+        assertNull(SqlSourceRewriter.keyColumn("SELECT v.person_id FROM visit_occurrence v"));
+        assertNull(SqlSourceRewriter.keyColumn("SELECT person_id FROM person GROUP BY person_id"));
+        assertNull(SqlSourceRewriter.keyColumn("SELECT person_id FROM person UNION SELECT person_id FROM death"));
+    }
+}